@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Lemmatizer
+ * (see https://github.com/GateNLP/gateplugin-Lemmatizer)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ontotext.gate.dictlemm;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Lemmatizes documents and token batches asynchronously, without a GATE pipeline.
+ * <p>
+ * All requests share the language resources, so any number of them can be in flight without
+ * duplicating PRs. Each request gets its own {@link TokenLemmatizer} copied from the template
+ * returned by {@link #getSettings()}, which must be configured before the first request.
+ * <p>
+ * At most maxInFlight requests are queued or running at a time. Submitting more blocks the
+ * caller until one completes, which pushes back on producers that are faster than the lemmatizer.
+ * <p>
+ * The default executor runs every request on its own virtual thread if the JVM has them (Java 21
+ * and later), otherwise on a fixed pool with one platform thread per processor.
+ */
+public class AsyncLemmatizer implements AutoCloseable {
+	private static final Logger LOGGER = Logger.getLogger(AsyncLemmatizer.class);
+
+	public static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+
+	/** A token to lemmatize in a batch. */
+	public static class Token {
+		public final String string;
+		public final String pos;
+		public final String kind;
+
+		public Token(String string, String pos, String kind) {
+			this.string = string;
+			this.pos = pos;
+			this.kind = kind;
+		}
+
+		public Token(String string, String pos) {
+			this(string, pos, "word");
+		}
+	}
+
+	private final LanguageResources resources;
+	private final TokenLemmatizer settings;
+	private final Executor executor;
+	private final ExecutorService ownExecutor;  // if not null it was created here and is shut down on close
+	private final int maxInFlight;
+	private final Semaphore inFlight;
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+	private final AtomicBoolean cleanedUp = new AtomicBoolean(false);
+	private volatile boolean closeInterrupted = false;  // then nobody waits for the requests in flight
+
+	/**
+	 * Creates an asynchronous lemmatizer with the default executor and in-flight limit.
+	 *
+	 * @param resourcesDir the resources directory of the plugin with the dictionaries and lemmaModels directories
+	 * @param langCode     the language code
+	 */
+	public AsyncLemmatizer(File resourcesDir, String langCode) {
+		this(resourcesDir, langCode, null, DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	/**
+	 * @param resourcesDir the resources directory of the plugin with the dictionaries and lemmaModels directories
+	 * @param langCode     the language code
+	 * @param executor     runs the requests, if null a default executor is created and shut down on close
+	 * @param maxInFlight  the number of requests which can be queued or running before submitting blocks
+	 */
+	public AsyncLemmatizer(File resourcesDir, String langCode, Executor executor, int maxInFlight) {
+		if (maxInFlight < 1) throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+		this.resources = LanguageResources.acquire(resourcesDir, langCode, this);
+		this.settings = new TokenLemmatizer(resources);
+		this.settings.setGuesserMinConfidence(0.9);
+		if (executor == null) {
+			ownExecutor = defaultExecutor();
+			this.executor = ownExecutor;
+		} else {
+			ownExecutor = null;
+			this.executor = executor;
+		}
+		this.maxInFlight = maxInFlight;
+		this.inFlight = new Semaphore(maxInFlight);
+	}
+
+	/**
+	 * The template for the lemmatizers of the requests, which is copied when a request is
+	 * submitted. Changes only affect requests submitted afterwards, and must be made by the
+	 * thread which submits them.
+	 */
+	public TokenLemmatizer getSettings() {
+		return settings;
+	}
+
+	public LanguageResources getResources() {
+		return resources;
+	}
+
+	/**
+	 * Lemmatizes all tokens of a document, writing the lemma and diagnostics features like the PR.
+	 * The document must not be modified by anybody else until the future completes.
+	 *
+	 * @param document          the document
+	 * @param annotationSetName the name of the annotation set with the tokens, null or empty for the default set
+	 * @param tokenType         the annotation type of the tokens
+	 * @return a future which completes with the document
+	 */
+	public CompletableFuture<Document> lemmatize(Document document, String annotationSetName, String tokenType) {
+		TokenLemmatizer lemmatizer = new TokenLemmatizer(settings);
+		return submit(() -> {
+			AnnotationSet annotations;
+			if (annotationSetName == null || annotationSetName.isEmpty()) annotations = document.getAnnotations();
+			else annotations = document.getAnnotations(annotationSetName);
+
+			lemmatizer.startDocument();
+			for (Annotation token : annotations.get(tokenType)) lemmatizer.lemmatize(document, token);
+			lemmatizer.finishDocument(document);
+			return document;
+		});
+	}
+
+	/**
+	 * Lemmatizes a batch of tokens. The HFST time budget applies to the batch as it does to a document.
+	 *
+	 * @return a future which completes with the lemmata in the order of the tokens
+	 */
+	public CompletableFuture<List<String>> lemmatize(List<Token> tokens) {
+		TokenLemmatizer lemmatizer = new TokenLemmatizer(settings);
+		return submit(() -> {
+			lemmatizer.startDocument();
+			List<String> lemmas = new ArrayList<>(tokens.size());
+			try {
+				for (Token token : tokens) lemmas.add(lemmatizer.lemmatize(token.string, token.kind, token.pos));
+			} finally {
+				lemmatizer.flushUnresolved();
+			}
+			return lemmas;
+		});
+	}
+
+	/**
+	 * Waits for the requests in flight, shuts down the default executor and releases the
+	 * language resources. If the calling thread is interrupted while waiting, this returns with
+	 * the interrupt flag set and the last request in flight cleans up when it completes.
+	 */
+	@Override
+	public void close() {
+		if (!closed.compareAndSet(false, true)) return;
+		try {
+			// once all permits are ours, nothing is in flight any more
+			inFlight.acquire(maxInFlight);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			LOGGER.debug("interrupted while waiting for the requests in flight");
+			closeInterrupted = true;
+			cleanupIfIdle();
+			return;
+		}
+		cleanup();
+	}
+
+	private void cleanupIfIdle() {
+		if (inFlight.tryAcquire(maxInFlight)) cleanup();
+	}
+
+	// must hold all permits, they are given back so that submitters blocked on them find the lemmatizer closed
+	private void cleanup() {
+		try {
+			if (!cleanedUp.compareAndSet(false, true)) return;
+			if (ownExecutor != null) ownExecutor.shutdown();
+			resources.release();
+		} finally {
+			inFlight.release(maxInFlight);
+		}
+	}
+
+	private <T> CompletableFuture<T> submit(Supplier<T> work) {
+		if (closed.get()) throw new IllegalStateException("the lemmatizer is closed");
+		try {
+			inFlight.acquire();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			CompletableFuture<T> failed = new CompletableFuture<>();
+			failed.completeExceptionally(ex);
+			return failed;
+		}
+		if (closed.get()) {
+			// closed while this was waiting for a permit
+			inFlight.release();
+			throw new IllegalStateException("the lemmatizer is closed");
+		}
+
+		try {
+			CompletableFuture<T> future = CompletableFuture.supplyAsync(work, executor);
+			future.whenComplete((result, ex) -> {
+				inFlight.release();
+				if (closeInterrupted) cleanupIfIdle();
+			});
+			return future;
+		} catch (RejectedExecutionException ex) {
+			inFlight.release();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Creates a virtual thread per task executor via reflection, so the plugin still runs on
+	 * JVMs without virtual threads, where a fixed pool is used instead.
+	 */
+	private static ExecutorService defaultExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException ex) {
+			LOGGER.debug("no virtual threads, using a fixed thread pool");
+			return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+				Thread thread = new Thread(runnable, "AsyncLemmatizer");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+}
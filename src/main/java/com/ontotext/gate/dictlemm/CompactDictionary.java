@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Lemmatizer
+ * (see https://github.com/GateNLP/gateplugin-Lemmatizer)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ontotext.gate.dictlemm;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A read-only form to lemma map which needs a fraction of the memory of a HashMap.
+ * <p>
+ * All forms are stored as UTF-8 in one byte array. Most lemmata are regular, the form minus a
+ * short suffix plus another short suffix, so instead of the lemma each form record ends with the
+ * index of such an edit script, e.g. "strip 1, append nothing" for treasons. The scripts are
+ * shared by all forms in a table of at most 65536 entries, numbered by frequency so that the
+ * common ones take one byte. Only lemmata which no shared script produces are stored in the
+ * array, once each, and referenced from the form record instead.
+ * <p>
+ * An open-addressing table with linear probing holds one long per slot: 32 bits of the hash of
+ * the form and the offset of its record, so there is no object per entry. A lookup compares the
+ * hash bits first and then the form in the array with the chars of the key, which does not
+ * allocate. The lemma is built from the key by the edit script, and is the key itself for
+ * forms which are their own lemma.
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ */
+public class CompactDictionary extends AbstractMap<String, String> {
+	private static final long EMPTY = 0;  // the arena starts with a padding byte, so no form is at offset 0
+	private static final int MAX_SCRIPTS = 65536;
+	private static final int MAX_STRIP = 255;
+	private static final String IDENTITY = "\0";  // the script of forms which are their own lemma
+
+	private final long[] table;  // hash in the high and record offset in the low 32 bits
+	private final byte[] arena;  // records of a varint length, UTF-8 bytes and for forms a varint lemma code
+	private final byte[] scriptStrip;  // the number of chars to remove from the end of the form, unsigned
+	private final String[] scriptAppend;  // the chars to append then
+	private final int mask;
+	private final int size;
+
+	private CompactDictionary(long[] table, byte[] arena, byte[] scriptStrip, String[] scriptAppend, int size) {
+		this.table = table;
+		this.arena = arena;
+		this.scriptStrip = scriptStrip;
+		this.scriptAppend = scriptAppend;
+		this.mask = table.length - 1;
+		this.size = size;
+	}
+
+	/**
+	 * Copies a form to lemma map as returned by {@link DictLemmatizerPR#loadDictionary(java.io.File)}.
+	 */
+	public static CompactDictionary of(Map<String, String> map) {
+		// scripts used by a single form are not worth a table entry
+		Map<String, Integer> frequencies = new HashMap<>();
+		for (Map.Entry<String, String> entry : map.entrySet()) {
+			String script = script(entry.getKey(), entry.getValue());
+			if (script != null) frequencies.merge(script, 1, Integer::sum);
+		}
+		List<String> scripts = new ArrayList<>();
+		for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+			if (entry.getValue() > 1 || entry.getKey().equals(IDENTITY)) scripts.add(entry.getKey());
+		}
+		scripts.sort((a, b) -> Integer.compare(frequencies.get(b), frequencies.get(a)));
+		if (scripts.size() > MAX_SCRIPTS) scripts = scripts.subList(0, MAX_SCRIPTS);
+		Map<String, Integer> scriptIndexes = new HashMap<>();
+		byte[] scriptStrip = new byte[scripts.size()];
+		String[] scriptAppend = new String[scripts.size()];
+		for (int i = 0; i < scripts.size(); i++) {
+			String script = scripts.get(i);
+			scriptIndexes.put(script, i);
+			scriptStrip[i] = (byte) script.charAt(0);
+			scriptAppend[i] = script.substring(1);
+		}
+
+		int capacity = 16;
+		while (capacity * 0.7 < map.size()) capacity *= 2;
+		int mask = capacity - 1;
+		long[] table = new long[capacity];
+
+		Arena arena = new Arena();
+		Map<String, Integer> lemmaOffsets = new HashMap<>();
+		for (Map.Entry<String, String> entry : map.entrySet()) {
+			String form = entry.getKey();
+			String lemma = entry.getValue();
+			long hash = hash(form, 0, form.length(), false);
+			int slot = (int) hash & mask;
+			while (table[slot] != EMPTY) slot = (slot + 1) & mask;
+
+			// the lemma code is twice the script index, or twice the lemma offset plus one
+			String script = script(form, lemma);
+			Integer index = script == null ? null : scriptIndexes.get(script);
+			int offset;
+			if (index != null) {
+				offset = arena.add(form, 2L * index);
+			} else {
+				Integer lemmaOffset = lemmaOffsets.get(lemma);
+				if (lemmaOffset == null) {
+					lemmaOffset = arena.add(lemma, -1);
+					lemmaOffsets.put(lemma, lemmaOffset);
+				}
+				offset = arena.add(form, 2L * lemmaOffset + 1);
+			}
+			table[slot] = hash & 0xffffffff00000000L | offset;
+		}
+		return new CompactDictionary(table, arena.toArray(), scriptStrip, scriptAppend, map.size());
+	}
+
+	/**
+	 * The edit script from a form to its lemma as the number of chars to strip, as a char, followed
+	 * by the chars to append, or null if too much has to be stripped.
+	 */
+	private static String script(String form, String lemma) {
+		int common = 0;
+		int max = Math.min(form.length(), lemma.length());
+		while (common < max && form.charAt(common) == lemma.charAt(common)) common++;
+		int strip = form.length() - common;
+		if (strip > MAX_STRIP) return null;
+		return (char) strip + lemma.substring(common);
+	}
+
+	@Override
+	public String get(Object key) {
+		if (!(key instanceof String)) return null;
+		String form = (String) key;
+		return get(form, 0, form.length(), false);
+	}
+
+	/**
+	 * Looks up the lower case of a range of a text, like {@code get(text.substring(start, end).toLowerCase())}
+	 * but without creating the key, so that tokens can be looked up in the document content directly.
+	 * Only the lemma is created, and only if the form is found. The chars are lowercased one by one,
+	 * so the range must not contain surrogates or chars which String.toLowerCase() maps differently.
+	 */
+	public String getLowerCase(String text, int start, int end) {
+		return get(text, start, end, true);
+	}
+
+	private String get(String text, int start, int end, boolean lowerCase) {
+		long hash = hash(text, start, end, lowerCase);
+		for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+			long entry = table[slot];
+			if (entry == EMPTY) return null;
+			if ((entry ^ hash) >>> 32 == 0) {
+				int recordEnd = match((int) entry, text, start, end, lowerCase);
+				if (recordEnd >= 0) return lemma(text, start, end, lowerCase, recordEnd);
+			}
+		}
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Set<Entry<String, String>> entrySet() {
+		return new AbstractSet<Entry<String, String>>() {
+			@Override
+			public Iterator<Entry<String, String>> iterator() {
+				return new Iterator<Entry<String, String>>() {
+					private int slot = advance(0);
+
+					private int advance(int from) {
+						while (from < table.length && table[from] == EMPTY) from++;
+						return from;
+					}
+
+					@Override
+					public boolean hasNext() {
+						return slot < table.length;
+					}
+
+					@Override
+					public Entry<String, String> next() {
+						if (!hasNext()) throw new NoSuchElementException();
+						int offset = (int) table[slot];
+						String form = decode(offset);
+						String lemma = lemma(form, 0, form.length(), false, match(offset, form, 0, form.length(), false));
+						slot = advance(slot + 1);
+						return new SimpleImmutableEntry<>(form, lemma);
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/** The bytes retained, assuming a 64 bit JVM with compressed references. */
+	public long estimatedBytes() {
+		long bytes = 40 + LanguageResources.align(16 + 8L * table.length) + LanguageResources.align(16 + (long) arena.length)
+				+ LanguageResources.align(16 + (long) scriptStrip.length) + LanguageResources.align(16 + 4L * scriptAppend.length);
+		for (String append : scriptAppend) bytes += LanguageResources.estimateBytes(append);
+		return bytes;
+	}
+
+	/** The number of shared edit scripts. */
+	public int getScriptCount() {
+		return scriptAppend.length;
+	}
+
+	/** Applies the lemma code of a form record which ends at an offset to the form in a range of a text. */
+	private String lemma(String text, int start, int end, boolean lowerCase, int offset) {
+		long code = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = arena[offset++];
+			code |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while (b < 0);
+
+		if ((code & 1) != 0) return decode((int) (code >>> 1));
+		int script = (int) (code >>> 1);
+		String append = scriptAppend[script];
+		int keep = end - start - (scriptStrip[script] & 0xff);
+		if (!lowerCase) {
+			if (append.isEmpty()) return start == 0 && keep == text.length() ? text : text.substring(start, start + keep);
+			return text.substring(start, start + keep).concat(append);
+		}
+		// mostly the text is lower case already and can just be copied
+		int upper = start;
+		while (upper < start + keep && Character.toLowerCase(text.charAt(upper)) == text.charAt(upper)) upper++;
+		if (upper == start + keep) return append.isEmpty() ? text.substring(start, upper) : text.substring(start, upper).concat(append);
+		char[] lemma = new char[keep + append.length()];
+		text.getChars(start, upper, lemma, 0);
+		for (int i = upper - start; i < keep; i++) lemma[i] = Character.toLowerCase(text.charAt(start + i));
+		append.getChars(0, append.length(), lemma, keep);
+		return new String(lemma);
+	}
+
+	/**
+	 * FNV-1a over the chars, with the MurmurHash3 finalizer so that the low bits used for the
+	 * slot depend on all chars.
+	 */
+	private static long hash(String s, int start, int end, boolean lowerCase) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = start; i < end; i++) h = (h ^ (lowerCase ? Character.toLowerCase(s.charAt(i)) : s.charAt(i))) * 0x100000001b3L;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Compares the UTF-8 record at an offset with a range of chars of a string.
+	 *
+	 * @return the offset after the record if they are equal, otherwise -1
+	 */
+	private int match(int offset, String s, int start, int end, boolean lowerCase) {
+		int length = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = arena[offset++];
+			length |= (b & 0x7f) << shift;
+			shift += 7;
+		} while (b < 0);
+
+		int recordEnd = offset + length;
+		int i = start;
+		while (offset < recordEnd) {
+			int c = arena[offset++] & 0xff;
+			if (c >= 0x80) {
+				if (c < 0xe0) {
+					c = (c & 0x1f) << 6 | (arena[offset++] & 0x3f);
+				} else if (c < 0xf0) {
+					c = (c & 0x0f) << 12 | (arena[offset++] & 0x3f) << 6 | (arena[offset++] & 0x3f);
+				} else {
+					c = (c & 0x07) << 18 | (arena[offset++] & 0x3f) << 12 | (arena[offset++] & 0x3f) << 6 | (arena[offset++] & 0x3f);
+					if (i + 1 >= end || Character.codePointAt(s, i) != c) return -1;
+					i += 2;
+					continue;
+				}
+			}
+			if (i >= end || (lowerCase ? Character.toLowerCase(s.charAt(i)) : s.charAt(i)) != c) return -1;
+			i++;
+		}
+		return i == end ? offset : -1;
+	}
+
+	private String decode(int offset) {
+		int length = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = arena[offset++];
+			length |= (b & 0x7f) << shift;
+			shift += 7;
+		} while (b < 0);
+		return new String(arena, offset, length, StandardCharsets.UTF_8);
+	}
+
+	/** A growing byte array of length-prefixed UTF-8 strings. */
+	private static class Arena {
+		private byte[] bytes = new byte[4096];
+		private int length = 1;
+
+		/**
+		 * @param code appended as a varint after the string, unless it is negative
+		 * @return the offset of the record
+		 */
+		int add(String s, long code) {
+			byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+			ensureCapacity(15 + utf8.length);
+			int offset = length;
+			addVarint(utf8.length);
+			System.arraycopy(utf8, 0, bytes, length, utf8.length);
+			length += utf8.length;
+			if (code >= 0) addVarint(code);
+			return offset;
+		}
+
+		private void addVarint(long n) {
+			while (n >= 0x80) {
+				bytes[length++] = (byte) (n | 0x80);
+				n >>>= 7;
+			}
+			bytes[length++] = (byte) n;
+		}
+
+		private void ensureCapacity(int extra) {
+			if (length + extra <= bytes.length) return;
+			bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+		}
+
+		byte[] toArray() {
+			return Arrays.copyOf(bytes, length);
+		}
+	}
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Lemmatizer
+ * (see https://github.com/GateNLP/gateplugin-Lemmatizer)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ontotext.gate.dictlemm;
+
+import gate.Corpus;
+import gate.CorpusController;
+import gate.Document;
+import gate.Factory;
+import gate.corpora.DocumentStaxUtils;
+import gate.creole.AbstractController;
+import gate.creole.ExecutionException;
+import gate.creole.ResourceInstantiationException;
+import gate.util.GateRuntimeException;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a pipeline over a corpus or a directory of GATE XML files on several threads.
+ * <p>
+ * Every worker runs its own duplicate of the pipeline, the lemmatizers in the duplicates share one
+ * set of language resources. The calling thread loads the documents one after the other into a
+ * single queue from which the workers take them, so every document is processed exactly once. At
+ * most prefetch documents are loaded but not yet finished, which bounds the memory needed however
+ * large the corpus is.
+ * <p>
+ * If an output directory is set, the processed documents are written to it as GATE XML, either
+ * in input order by whichever worker completes the next one ({@link Output#ORDERED}), or by each
+ * worker to its own part-N sub-directory as soon as it is done ({@link Output#PARTITIONED}).
+ * <p>
+ * A document which fails is logged, counted and skipped, the run goes on with the next one. An
+ * {@link Error} stops the run instead: no further documents are loaded and once the workers are
+ * done it is thrown by {@code run}.
+ */
+public class CorpusRunner {
+	private static final Logger LOGGER = Logger.getLogger(CorpusRunner.class);
+
+	/** How processed documents are written to the output directory. */
+	public enum Output {
+		/** One directory, files written in input order. */
+		ORDERED,
+		/** A part-N sub-directory per worker, files written as soon as they are processed. */
+		PARTITIONED
+	}
+
+	/** The counts and failures of a run. */
+	public static class Result {
+		private final long documents;
+		private final long characters;
+		private final List<String> failedDocuments;
+		private final double seconds;
+
+		Result(long documents, long characters, List<String> failedDocuments, double seconds) {
+			this.documents = documents;
+			this.characters = characters;
+			this.failedDocuments = failedDocuments;
+			this.seconds = seconds;
+		}
+
+		/** @return the number of documents processed successfully */
+		public long getDocuments() {
+			return documents;
+		}
+
+		public long getCharacters() {
+			return characters;
+		}
+
+		/** @return the names of the documents which could not be loaded, processed or written */
+		public List<String> getFailedDocuments() {
+			return failedDocuments;
+		}
+
+		public double getSeconds() {
+			return seconds;
+		}
+
+		@Override
+		public String toString() {
+			return documents + " documents processed, " + failedDocuments.size() + " failed, in " + String.format("%.1f", seconds) + " s";
+		}
+	}
+
+	// a document in the queue, with what is needed to finish it
+	private static class Work {
+		final long sequence;
+		final String name;
+		final Document document;
+		final boolean unload;  // unload from the source corpus when done
+		boolean failed = false;
+		Throwable error = null;  // an Error which stops the run
+
+		Work(long sequence, String name, Document document, boolean unload) {
+			this.sequence = sequence;
+			this.name = name;
+			this.document = document;
+			this.unload = unload;
+		}
+	}
+
+	private static final Work END = new Work(-1, null, null, false);
+
+	private final CorpusController pipeline;
+	private int nrWorkers = Runtime.getRuntime().availableProcessors();
+	private int prefetch = 0;  // 0 for twice the workers
+	private File outputDirectory = null;
+	private Output output = Output.ORDERED;
+	private long progressIntervalMillis = 10000;
+
+	// state of the current run
+	private Corpus sourceCorpus;
+	private BlockingQueue<Work> queue;
+	private Semaphore unfinished;
+	private final Map<Long, Work> completed = new HashMap<>();  // ORDERED only, guarded by itself
+	private long nextToWrite;
+	private final AtomicLong nrDocuments = new AtomicLong();
+	private final AtomicLong nrCharacters = new AtomicLong();
+	private final List<String> failedDocuments = Collections.synchronizedList(new ArrayList<>());
+	private final AtomicReference<Throwable> fatalError = new AtomicReference<>();
+	private long start;
+	private long lastReport;
+
+	/**
+	 * @param pipeline the pipeline to run, it is duplicated for every worker and not run itself.
+	 *                 It must be a serial analyser controller or one derived from it, like the
+	 *                 conditional corpus pipeline.
+	 */
+	public CorpusRunner(CorpusController pipeline) {
+		if (!(pipeline instanceof AbstractController)) throw new IllegalArgumentException("not a GATE controller: " + pipeline.getClass());
+		this.pipeline = pipeline;
+	}
+
+	/** The number of worker threads, by default the number of processors. */
+	public CorpusRunner setWorkers(int nrWorkers) {
+		if (nrWorkers < 1) throw new IllegalArgumentException("there must be at least one worker: " + nrWorkers);
+		this.nrWorkers = nrWorkers;
+		return this;
+	}
+
+	/** The maximum number of documents loaded but not finished yet, by default twice the number of workers. */
+	public CorpusRunner setPrefetch(int prefetch) {
+		if (prefetch < 1) throw new IllegalArgumentException("prefetch must be positive: " + prefetch);
+		this.prefetch = prefetch;
+		return this;
+	}
+
+	/** The directory to write the processed documents to, null to not write them. */
+	public CorpusRunner setOutputDirectory(File outputDirectory, Output output) {
+		this.outputDirectory = outputDirectory;
+		this.output = output;
+		return this;
+	}
+
+	/** How often progress is logged. */
+	public CorpusRunner setProgressInterval(long millis) {
+		this.progressIntervalMillis = millis;
+		return this;
+	}
+
+	/**
+	 * Processes all documents of a corpus. Documents which are not loaded, like those of a
+	 * corpus in a datastore, are loaded when they are queued and unloaded (and thereby saved) when
+	 * they are done.
+	 *
+	 * @throws Error the first error of a worker, after all workers have stopped
+	 */
+	public Result run(Corpus corpus) throws ResourceInstantiationException, InterruptedException {
+		return run(corpus, null);
+	}
+
+	/**
+	 * Processes all GATE XML files (*.xml) in a directory in the order of their names.
+	 *
+	 * @throws Error the first error of a worker, after all workers have stopped
+	 */
+	public Result run(File inputDirectory) throws ResourceInstantiationException, InterruptedException {
+		File[] files = inputDirectory.listFiles((dir, name) -> name.endsWith(".xml"));
+		if (files == null) throw new GateRuntimeException("Not a directory: " + inputDirectory);
+		Arrays.sort(files);
+		return run(null, files);
+	}
+
+	private synchronized Result run(Corpus corpus, File[] files) throws ResourceInstantiationException, InterruptedException {
+		int capacity = prefetch > 0 ? prefetch : 2 * nrWorkers;
+		sourceCorpus = corpus;
+		queue = new LinkedBlockingQueue<>();
+		unfinished = new Semaphore(capacity);
+		completed.clear();
+		nextToWrite = 0;
+		nrDocuments.set(0);
+		nrCharacters.set(0);
+		failedDocuments.clear();
+		fatalError.set(null);
+		if (outputDirectory != null && !outputDirectory.isDirectory() && !outputDirectory.mkdirs()) throw new GateRuntimeException("Could not create " + outputDirectory);
+
+		int size = corpus != null ? corpus.size() : files.length;
+		LOGGER.info("processing " + size + " documents with " + nrWorkers + " workers");
+		start = System.nanoTime();
+		lastReport = start;
+
+		List<CorpusController> duplicates = new ArrayList<>();
+		List<Thread> workers = new ArrayList<>();
+		try {
+			for (int i = 0; i < nrWorkers; i++) duplicates.add((CorpusController) Factory.duplicate(pipeline));
+			for (int i = 0; i < nrWorkers; i++) {
+				int worker = i;
+				Thread thread = new Thread(() -> work(worker, duplicates.get(worker)), "CorpusRunner-" + i);
+				thread.setDaemon(true);
+				thread.start();
+				workers.add(thread);
+			}
+
+			for (int i = 0; i < size; i++) {
+				if (!acquire()) break;
+				Work work = load(i, corpus, files);
+				if (work.failed) finish(work);
+				else queue.put(work);
+				reportProgress(size, false);
+			}
+		} finally {
+			for (int i = 0; i < workers.size(); i++) queue.put(END);
+			for (Thread worker : workers) {
+				while (worker.isAlive()) {
+					worker.join(Math.max(1, progressIntervalMillis));
+					reportProgress(size, false);
+				}
+			}
+			for (CorpusController duplicate : duplicates) Factory.deleteResource(duplicate);
+			sourceCorpus = null;
+		}
+
+		Throwable error = fatalError.get();
+		if (error instanceof Error) throw (Error) error;
+		if (error != null) throw new GateRuntimeException("CorpusRunner failed", error);
+		reportProgress(size, true);
+		return new Result(nrDocuments.get(), nrCharacters.get(), new ArrayList<>(failedDocuments), (System.nanoTime() - start) / 1e9);
+	}
+
+	/** @return whether a document may be loaded, false once a worker has failed with an error */
+	private boolean acquire() throws InterruptedException {
+		// a worker which died does not finish the documents left in the queue, their permits may never come back
+		while (!unfinished.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+			if (fatalError.get() != null) return false;
+		}
+		return fatalError.get() == null;
+	}
+
+	private Work load(int index, Corpus corpus, File[] files) {
+		if (corpus != null) {
+			synchronized (corpus) {
+				boolean loaded = corpus.isDocumentLoaded(index);
+				try {
+					Document document = corpus.get(index);
+					return new Work(index, document.getName(), document, !loaded);
+				} catch (RuntimeException ex) {
+					LOGGER.error("Could not load document " + index + " of " + corpus.getName(), ex);
+					return failed(index, corpus.getDocumentName(index));
+				}
+			}
+		}
+
+		try {
+			Document document = Factory.newDocument(files[index].toURI().toURL(), "UTF-8");
+			return new Work(index, files[index].getName(), document, true);
+		} catch (IOException | ResourceInstantiationException ex) {
+			LOGGER.error("Could not load " + files[index], ex);
+			return failed(index, files[index].getName());
+		}
+	}
+
+	private static Work failed(long sequence, String name) {
+		Work work = new Work(sequence, name, null, false);
+		work.failed = true;
+		return work;
+	}
+
+	private void work(int worker, CorpusController controller) {
+		AbstractController abstractController = (AbstractController) controller;
+		Corpus corpus = null;
+		boolean ready = false;
+		try {
+			corpus = Factory.newCorpus("CorpusRunner-" + worker);
+			controller.setCorpus(corpus);
+
+			// the controller runs once per document, so the PRs are told about the run here
+			abstractController.setControllerCallbacksEnabled(false);
+			abstractController.invokeControllerExecutionStarted();
+			ready = true;
+		} catch (ExecutionException | ResourceInstantiationException | RuntimeException ex) {
+			LOGGER.error("Worker " + worker + " could not be started, the documents it takes fail", ex);
+		} catch (Error err) {
+			LOGGER.error("Worker " + worker + " could not be started, stopping the run", err);
+			fatalError.compareAndSet(null, err);
+		}
+
+		try {
+			Work work;
+			while ((work = queue.take()) != END) {
+				try {
+					if (ready) {
+						corpus.add(work.document);
+						try {
+							controller.execute();
+						} catch (ExecutionException | RuntimeException ex) {
+							LOGGER.error("Could not process " + work.name, ex);
+							work.failed = true;
+						} finally {
+							corpus.clear();
+						}
+					} else {
+						work.failed = true;
+					}
+					if (output == Output.PARTITIONED) write(work, outputDirectory == null ? null : new File(outputDirectory, "part-" + worker));
+				} catch (Error err) {
+					work.failed = true;
+					work.error = err;
+					throw err;
+				} finally {
+					// also on an error, the next document in order and the permit must not wait for this one
+					finish(work);
+				}
+			}
+			if (ready) abstractController.invokeControllerExecutionFinished();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException | RuntimeException ex) {
+			LOGGER.error("Worker " + worker + " could not be finished", ex);
+		} catch (Error err) {
+			LOGGER.error("Worker " + worker + " stopped, stopping the run", err);
+			fatalError.compareAndSet(null, err);
+		} finally {
+			if (corpus != null) {
+				controller.setCorpus(null);
+				Factory.deleteResource(corpus);
+			}
+		}
+	}
+
+	private void finish(Work work) {
+		if (output == Output.ORDERED && outputDirectory != null) {
+			// whoever completes the next document in order writes it and the ones after it which are done already
+			synchronized (completed) {
+				completed.put(work.sequence, work);
+				Work next;
+				while ((next = completed.remove(nextToWrite)) != null) {
+					nextToWrite += 1;
+					write(next, outputDirectory);
+					release(next);
+				}
+			}
+		} else {
+			release(work);
+		}
+	}
+
+	private void write(Work work, File directory) {
+		if (work.failed || directory == null) return;
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Could not create " + directory);
+			String name = work.name.endsWith(".xml") ? work.name : work.name + ".xml";
+			DocumentStaxUtils.writeDocument(work.document, new File(directory, name.replaceAll("[/\\\\:]", "_")));
+		} catch (Exception ex) {
+			LOGGER.error("Could not write " + work.name, ex);
+			work.failed = true;
+		}
+	}
+
+	private void release(Work work) {
+		try {
+			if (work.error != null) fatalError.compareAndSet(null, work.error);
+			if (work.failed) {
+				failedDocuments.add(work.name);
+			} else {
+				nrDocuments.incrementAndGet();
+				nrCharacters.addAndGet(work.document.getContent().size());
+			}
+			if (work.document != null && work.unload) {
+				if (sourceCorpus != null) synchronized (sourceCorpus) {
+					sourceCorpus.unloadDocument(work.document);
+				}
+				Factory.deleteResource(work.document);
+			}
+		} catch (RuntimeException ex) {
+			LOGGER.error("Could not unload " + work.name, ex);
+		} finally {
+			unfinished.release();
+		}
+	}
+
+	private void reportProgress(int size, boolean force) {
+		long now = System.nanoTime();
+		if (!force && now - lastReport < TimeUnit.MILLISECONDS.toNanos(progressIntervalMillis)) return;
+		lastReport = now;
+
+		double seconds = Math.max((now - start) / 1e9, 1e-3);
+		long done = nrDocuments.get();
+		LOGGER.info(String.format("%d of %d documents processed, %d failed, %.1f documents/s, %.0f characters/s",
+				done, size, failedDocuments.size(), done / seconds, nrCharacters.get() / seconds));
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Lemmatizer
+ * (see https://github.com/GateNLP/gateplugin-Lemmatizer)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ontotext.gate.dictlemm;
+
+/**
+ * How much the lemmatizer reports about the way it found the lemmata.
+ */
+public enum DiagnosticsLevel {
+	/** Nothing but the lemma feature is written. */
+	NONE,
+	/** The number of tokens per {@link LemmaOutcome} is stored once per document in the "lemmatizer.summary" feature. */
+	SUMMARY,
+	/** Every token gets a "lemmatizer.status" feature like "NOUN-NOTFOUND-HFST_HAVE". */
+	PER_TOKEN
+}
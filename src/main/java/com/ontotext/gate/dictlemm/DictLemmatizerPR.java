@@ -26,15 +26,19 @@ import gate.creole.metadata.CreoleParameter;
 import gate.creole.metadata.CreoleResource;
 import gate.creole.metadata.Optional;
 import gate.creole.metadata.RunTime;
+import gate.util.Benchmark;
 import gate.util.GateRuntimeException;
 import org.apache.log4j.Logger;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -60,6 +64,15 @@ public class DictLemmatizerPR extends AbstractDocumentProcessor {
 	private String posFeature;
 	private String lemmaFeature;
 	private String languageCode;
+	private Double guesserMinConfidence;
+	private Integer hfstMaxTokenLength;
+	private Integer hfstTokenTimeBudget;
+	private Integer hfstDocumentTimeBudget;
+	private Double hfstMaxFailureRate;
+	private URL hfstCacheDirectory;
+	private URL overlayDictionaryDirectory;
+	private DiagnosticsLevel diagnostics;
+	private URL unresolvedFormsFile;
 
 	@RunTime
 	@Optional
@@ -135,35 +148,111 @@ public class DictLemmatizerPR extends AbstractDocumentProcessor {
 		return languageCode;
 	}
 
+	@RunTime
+	@Optional
+	@CreoleParameter(comment = "The minimum confidence of a suffix rule guess for a word not in the lists to be used instead of asking HFST, values above 1.0 disable guessing", defaultValue = "0.9")
+	public void setGuesserMinConfidence(Double val) {
+		guesserMinConfidence = val;
+	}
+
+	public Double getGuesserMinConfidence() {
+		return guesserMinConfidence;
+	}
+
+	@RunTime
+	@Optional
+	@CreoleParameter(comment = "Longer tokens are never passed to HFST", defaultValue = "50")
+	public void setHfstMaxTokenLength(Integer val) {
+		hfstMaxTokenLength = val;
+	}
+
+	public Integer getHfstMaxTokenLength() {
+		return hfstMaxTokenLength;
+	}
+
+	@RunTime
+	@Optional
+	@CreoleParameter(comment = "HFST analyses of a single token which take longer than this many milliseconds count as failures", defaultValue = "100")
+	public void setHfstTokenTimeBudget(Integer val) {
+		hfstTokenTimeBudget = val;
+	}
+
+	public Integer getHfstTokenTimeBudget() {
+		return hfstTokenTimeBudget;
+	}
+
+	@RunTime
+	@Optional
+	@CreoleParameter(comment = "Once HFST has used this many milliseconds for a document, it is not used for the rest of the document", defaultValue = "5000")
+	public void setHfstDocumentTimeBudget(Integer val) {
+		hfstDocumentTimeBudget = val;
+	}
+
+	public Integer getHfstDocumentTimeBudget() {
+		return hfstDocumentTimeBudget;
+	}
+
+	@RunTime
+	@Optional
+	@CreoleParameter(comment = "HFST is turned off for a while for the language if the share of failed or too slow analyses goes above this", defaultValue = "0.5")
+	public void setHfstMaxFailureRate(Double val) {
+		hfstMaxFailureRate = val;
+	}
+
+	public Double getHfstMaxFailureRate() {
+		return hfstMaxFailureRate;
+	}
+
+	@RunTime
+	@Optional
+	@CreoleParameter(comment = "A directory for persistent caches of HFST results, if left blank HFST results are not cached across runs")
+	public void setHfstCacheDirectory(URL val) {
+		hfstCacheDirectory = val;
+	}
+
+	public URL getHfstCacheDirectory() {
+		return hfstCacheDirectory;
+	}
+
+	@RunTime
+	@Optional
+	@CreoleParameter(comment = "A directory with a sub-directory per language of word lists which take precedence over the bundled ones and are reloaded when they change")
+	public void setOverlayDictionaryDirectory(URL val) {
+		overlayDictionaryDirectory = val;
+	}
+
+	public URL getOverlayDictionaryDirectory() {
+		return overlayDictionaryDirectory;
+	}
+
+	@RunTime
+	@Optional
+	@CreoleParameter(comment = "NONE, SUMMARY for the number of tokens per outcome in the lemmatizer.summary document feature, or PER_TOKEN for a lemmatizer.status feature on every token", defaultValue = "SUMMARY")
+	public void setDiagnostics(DiagnosticsLevel val) {
+		diagnostics = val;
+	}
+
+	public DiagnosticsLevel getDiagnostics() {
+		return diagnostics;
+	}
+
+	@RunTime
+	@Optional
+	@CreoleParameter(comment = "A file to write the most frequent forms which were not in the lists to after each run, tab separated")
+	public void setUnresolvedFormsFile(URL val) {
+		unresolvedFormsFile = val;
+	}
+
+	public URL getUnresolvedFormsFile() {
+		return unresolvedFormsFile;
+	}
+
 	////////////////////// FIELDS
-	Map<String, String> nounDic;
-	Map<String, String> adjDic;
-	Map<String, String> advDic;
-	Map<String, String> verbDic;
-	Map<String, String> detDic;
-	Map<String, String> pronDic;
-	Map<String, String> partDic;
-	Map<String, String> adpDic;
-
-	String textFeatureToUse = "string";
-	String posFeatureToUse = "category";
-	String lemmaFeatureToUse = "lemma";
-
-	String loadedDicts = "";
-	String loadedFst = "";
-
-	int nrTokens = 0;
-	int nrErrors = 0;
-	int nrHfst = 0;
-	int nrListLookups = 0;
-	int nrListLookupsNotFound = 0;
-
-	HfstLemmatizer hfstLemmatizer = null;  // if null we do not have a FST
-
-	// If this is true, the Hfst will always be suppressed.
-	// This can only be set (for debugging) by setting to propery
-	// gateplugin-Lemmatizer.noHfst to something other than the string "false";
-	private boolean noHfst = false;
+	// the word lists, guessers and transducer, shared with all other PRs for the language
+	LanguageResources resources = null;
+	TokenLemmatizer tokenLemmatizer = null;
+	// the file the unresolved forms are written to after the current run
+	private File unresolvedFormsDumpFile = null;
 
 	////////////////////// PROCESSING
 	@Override
@@ -180,242 +269,127 @@ public class DictLemmatizerPR extends AbstractDocumentProcessor {
 		if (containingType != null && !containingType.isEmpty()) containingAnns = inputAS.get(containingType);
 
 		fireStatusChanged("running on " + document.getName() + "...");
+		long startTime = Benchmark.startPoint();
+		tokenLemmatizer.startDocument();
 
 		// do it for each containing annotation
 		if (containingAnns == null) doIt(document, inputAnns);
 		else for (Annotation containingAnn : containingAnns) {
 			doIt(document, Utils.getContainedAnnotations(inputAnns, containingAnn));
 		}
+		tokenLemmatizer.finishDocument(document);
+
+		// the phases alternate token by token, so their accumulated times are reported
+		if (Benchmark.isBenchmarkingEnabled()) {
+			benchmarkCheckpoint(startTime, "lemmatize");
+			benchmarkDuration(tokenLemmatizer.getDocumentListNanos(), "listLookup");
+			benchmarkDuration(tokenLemmatizer.getDocumentHfstNanos(), "hfst");
+		}
 
 		fireProcessFinished();
 		fireStatusChanged("processing complete!");
 		return document;
 	}
 
-	private void doIt(Document doc, AnnotationSet anns) {
-		for (Annotation token : anns) {
-			FeatureMap fm = token.getFeatures();
-			String pos = (String) fm.get(posFeatureToUse);
-			if (pos != null && !pos.trim().isEmpty()) lemmatize(token, fm, pos);
-		}
+	private void benchmarkDuration(long nanos, String name) {
+		Benchmark.checkPointWithDuration(TimeUnit.NANOSECONDS.toMillis(nanos), Benchmark.createBenchmarkId(name, getBenchmarkId()), this, null);
 	}
 
-	private void lemmatize(Annotation token, FeatureMap fm, String pos) {
-		String lemmatizeStatus = "";   // an indication how we did the lemmatization for this token
-		nrTokens += 1;
-		String tokenString;
-		if (textFeatureToUse == null) tokenString = Utils.cleanStringFor(document, token);
-		else tokenString = (String) fm.get(textFeatureToUse);
-
-		String kind = ((String) fm.get("kind")).toLowerCase();
-		String lemma = null;  // as long as the lemma is null we can still try to find one ...
-		if (kind.equals("number")) {
-			lemma = tokenString;
-			lemmatizeStatus = "number";
-		} else if (kind.equals("punct")) {
-			lemma = tokenString;
-			lemmatizeStatus = "punct";
-		} else {
-
-			// https://www.ling.upenn.edu/courses/Fall_2003/ling001/penn_treebank_pos.html
-			if (pos.startsWith("JJ")) {
-				lemma = adjDic.get(tokenString.toLowerCase());
-				lemmatizeStatus = "ADJ";
-				nrListLookups += 1;
-				if (lemma == null) nrListLookupsNotFound += 1;
-			} else if (pos.startsWith("IN")) {
-				lemma = adpDic.get(tokenString.toLowerCase());
-				lemmatizeStatus = "ADP";
-				nrListLookups += 1;
-				if (lemma == null) nrListLookupsNotFound += 1;
-			} else if (pos.startsWith("RB")) {
-				lemma = advDic.get(tokenString.toLowerCase());
-				lemmatizeStatus = "ADV";
-				nrListLookups += 1;
-				if (lemma == null) nrListLookupsNotFound += 1;
-				// MISSING: AUX, CCONJ
-			} else if (pos.startsWith("DT")) {
-				lemma = detDic.get(tokenString.toLowerCase());
-				lemmatizeStatus = "DET";
-				nrListLookups += 1;
-				if (lemma == null) nrListLookupsNotFound += 1;
-				// MISSSING: INTJ
-			} else if (pos.startsWith("NN")) {
-				lemma = nounDic.get(tokenString.toLowerCase());
-				lemmatizeStatus = "NOUN";
-				nrListLookups += 1;
-				if (lemma == null) nrListLookupsNotFound += 1;
-				// MISSING: NUM
-			} else if (pos.startsWith("RP")) {
-				lemma = partDic.get(tokenString.toLowerCase());
-				lemmatizeStatus = "PART";
-				nrListLookups += 1;
-				if (lemma == null) nrListLookupsNotFound += 1;
-			} else if (pos.startsWith("PR")) {
-				lemma = pronDic.get(tokenString.toLowerCase());
-				lemmatizeStatus = "PRON";
-				nrListLookups += 1;
-				if (lemma == null) nrListLookupsNotFound += 1;
-				// MISSING: PROPN, PUNCT, SCONJ, SYM
-			} else if (pos.startsWith("VB")) {
-				lemma = verbDic.get(tokenString.toLowerCase());
-				lemmatizeStatus = "VERB";
-				nrListLookups += 1;
-				if (lemma == null) nrListLookupsNotFound += 1;
-				// MISSING: X
-			} else {
-				lemmatizeStatus = "UNHANDLEDPOS-" + pos;
-			}
-
-			if (lemma == null) lemmatizeStatus += "-NOTFOUND";
-			else lemmatizeStatus += "-FOUND";
-
-			// TODO: replace with indicator of if we have a FST from the init phase
-			if (lemma == null && hfstLemmatizer != null && !noHfst) {
-				try {
-					nrHfst += 1;
-					lemma = hfstLemmatizer.getLemma(tokenString, pos);
-					if (lemma != null && !lemma.isEmpty()) {
-						lemmatizeStatus += "-HFST_HAVE";
-					} else {
-						lemma = tokenString;
-						lemmatizeStatus += "-HFST_EMPTY";
-					}
-				} catch (Exception ex) {
-					LOGGER.error("Exception for " + tokenString + ": " + ex.getClass() + ", " + ex.getMessage(), ex);
-					lemma = tokenString;
-					lemmatizeStatus += "-HFST_ERROR";
-					nrErrors += 1;
-				}
-			}
-
-			// NOTE: this will only happen if we did not find a lemma in the dictionary and
-			// HFST was not used for some reason
-			if (lemma == null) {
-				lemma = tokenString;
-				lemmatizeStatus += "-NOHFST";
-			}
-		}
-
-		fm.put(lemmaFeatureToUse, lemma);
-		fm.put("lemmatizer.status", lemmatizeStatus);
+	private void doIt(Document doc, AnnotationSet anns) {
+		for (Annotation token : anns) tokenLemmatizer.lemmatize(doc, token);
 	}
 
 	@Override
 	protected void beforeFirstDocument(Controller ctrl) {
-		nrTokens = 0;
-		nrErrors = 0;
-		nrHfst = 0;
-		nrListLookups = 0;
-		nrListLookupsNotFound = 0;
-
-		if (posFeature == null || posFeature.trim().isEmpty()) posFeatureToUse = "category";
-		else posFeatureToUse = posFeature;
-
-		if (textFeature == null || textFeature.trim().isEmpty()) textFeatureToUse = null;
-		else textFeatureToUse = textFeature;
-
-		if (lemmaFeature == null || lemmaFeature.trim().isEmpty()) lemmaFeatureToUse = "lemma";
-		else lemmaFeatureToUse = lemmaFeature;
-
 		ResourceData myResourceData = Gate.getCreoleRegister().get(this.getClass().getName());
 		java.net.URL creoleXml = myResourceData.getXmlFileUrl();
 		File pluginDir = gate.util.Files.fileFromURL(creoleXml).getParentFile();
 		File resourcesDir = new File(pluginDir, "resources");
-		File dictDir = new File(new File(resourcesDir, "dictionaries"), languageCode);
-		if (!loadedDicts.equals(languageCode)) {
-			// if there are no dictionaries or the use of dictionaries has been disabled,
-			// create empty ones, and only the hfst is used.
-			// Otherwise load the dictionaries, at least the ones which are there
-			boolean noLists = false;
-			if (!dictDir.exists()) {
-				LOGGER.debug("List directory " + dictDir + " for language " + languageCode + " does not exist, not using lists.");
-				noLists = true;
-			}
-			String noListsProp = System.getProperty("gateplugin-Lemmatizer.noLists");
-			if (noListsProp != null && !noListsProp.toLowerCase().equals("false")) {
-				LOGGER.debug("gateplugin-Lemmatizer.noLists is set, not using lists");
-				noLists = true;
-			}
-			String noListsEnv = System.getenv("GATEPLUGIN_LEMMATIZER_NOLISTS");
-			if (noListsEnv != null && !noListsEnv.toLowerCase().equals("false")) {
-				LOGGER.debug("GATEPLUGIN_LEMMATIZER_NOLISTS is set, not using lists");
-				noLists = true;
-			}
-			if (noLists) {
-				adjDic = emptyDictionary();
-				adpDic = emptyDictionary();
-				advDic = emptyDictionary();
-				detDic = emptyDictionary();
-				nounDic = emptyDictionary();
-				pronDic = emptyDictionary();
-				verbDic = emptyDictionary();
-				partDic = emptyDictionary();
-			} else {
-				LOGGER.debug("loading dictionaries for " + languageCode);
-				adjDic = loadDictionary(new File(dictDir, "ADJ-Dict.txt.gz"));
-				adpDic = loadDictionary(new File(dictDir, "ADP-Dict.txt.gz"));
-				advDic = loadDictionary(new File(dictDir, "ADV-Dict.txt.gz"));
-				detDic = loadDictionary(new File(dictDir, "DET-Dict.txt.gz"));
-				nounDic = loadDictionary(new File(dictDir, "NOUN-Dict.txt.gz"));
-				partDic = loadDictionary(new File(dictDir, "PART-Dict.txt.gz"));
-				pronDic = loadDictionary(new File(dictDir, "PRON-Dict.txt.gz"));
-				verbDic = loadDictionary(new File(dictDir, "VERB-Dict.txt.gz"));
-				LOGGER.debug("dictionaries loaded");
-			}
-			loadedDicts = languageCode;
+		if (resources == null || !resources.isFor(resourcesDir, languageCode)) {
+			releaseResources();
+			resources = LanguageResources.acquire(resourcesDir, languageCode, this);
 		}
 
-		// Load the hfst lemmatizer if it exists for the language, otherwise
-		// the hfstLemmatizer variable remains null
-		File lemmatizerDir = new File(resourcesDir, "lemmaModels");
-		File lemmatizerFile = new File(lemmatizerDir, languageCode + ".hfst.ol.gz");
-		if (lemmatizerFile.exists()) {
-			if (!loadedFst.equals(languageCode)) {
-				try {
-					noHfst = false;
-					String noHfstProp = System.getProperty("gateplugin-Lemmatizer.noHfst");
-					if (noHfstProp != null && !noHfstProp.toLowerCase().equals("false")) {
-						LOGGER.debug("gateplugin-Lemmatizer.noHfst is set, not using  HFST");
-						noHfst = true;
-					}
-					String noHfstEnv = System.getenv("GATEPLUGIN_LEMMATIZER_NOHFST");
-					if (noHfstEnv != null && !noHfstEnv.toLowerCase().equals("false")) {
-						LOGGER.debug("GATEPLUGIN_LEMMATIZER_NOHFST is set, not using  HFST");
-						noHfst = true;
-					}
-					if (!noHfst) {
-						LOGGER.debug("loading HFST model for " + languageCode);
-						hfstLemmatizer = HfstLemmatizer.load(lemmatizerFile, languageCode);
-						LOGGER.debug("HFST model loaded");
-					}
-				} catch (Exception ex) {
-					throw new GateRuntimeException("Could not load lemmatization transducer " + lemmatizerFile, ex);
-				}
-				loadedFst = languageCode;
-			}
-		} else {
-			hfstLemmatizer = null;
-		}
+		tokenLemmatizer = new TokenLemmatizer(resources);
+
+		if (posFeature == null || posFeature.trim().isEmpty()) tokenLemmatizer.setPosFeature("category");
+		else tokenLemmatizer.setPosFeature(posFeature);
+
+		if (textFeature == null || textFeature.trim().isEmpty()) tokenLemmatizer.setTextFeature(null);
+		else tokenLemmatizer.setTextFeature(textFeature);
+
+		if (lemmaFeature == null || lemmaFeature.trim().isEmpty()) tokenLemmatizer.setLemmaFeature("lemma");
+		else tokenLemmatizer.setLemmaFeature(lemmaFeature);
 
+		// the guessers are learned from the dictionaries when they are first needed
+		if (guesserMinConfidence == null) tokenLemmatizer.setGuesserMinConfidence(0.9);
+		else tokenLemmatizer.setGuesserMinConfidence(guesserMinConfidence);
+
+		if (hfstMaxTokenLength != null) tokenLemmatizer.setHfstMaxTokenLength(hfstMaxTokenLength);
+		if (hfstTokenTimeBudget != null) tokenLemmatizer.setHfstTokenTimeBudget(hfstTokenTimeBudget);
+		if (hfstDocumentTimeBudget != null) tokenLemmatizer.setHfstDocumentTimeBudget(hfstDocumentTimeBudget);
+		if (hfstMaxFailureRate != null) tokenLemmatizer.setHfstMaxFailureRate(hfstMaxFailureRate);
+		if (hfstCacheDirectory != null) tokenLemmatizer.setHfstResultCache(resources.getResultCache(gate.util.Files.fileFromURL(hfstCacheDirectory)));
+		if (diagnostics != null) tokenLemmatizer.setDiagnostics(diagnostics);
+		if (overlayDictionaryDirectory != null) tokenLemmatizer.setOverlay(resources.getOverlay(gate.util.Files.fileFromURL(overlayDictionaryDirectory)));
+
+		unresolvedFormsDumpFile = unresolvedFormsFile == null ? null : gate.util.Files.fileFromURL(unresolvedFormsFile);
+		if (unresolvedFormsDumpFile != null) UnresolvedFormSketch.getInstance().startRun(unresolvedFormsDumpFile);
 	}
 
 	@Override
 	protected void afterLastDocument(Controller ctrl, Throwable t) {
-		LOGGER.debug("Tokens processed:                   " + nrTokens);
-		LOGGER.debug("Tokens for which HFST was invoked:  " + nrHfst);
-		LOGGER.debug("Tokens for which HFST had errors:   " + nrErrors);
-		LOGGER.debug("Tokens for which Lists looked up:   " + nrListLookups);
-		LOGGER.debug("Tokens for which not found in List: " + nrListLookupsNotFound);
+		tokenLemmatizer.logStatistics();
+
+		HfstResultCache hfstResultCache = tokenLemmatizer.getHfstResultCache();
+		if (hfstResultCache != null) hfstResultCache.flush();
+
+		// the sketch is shared by all duplicates, the last one to finish writes what all of them have found
+		tokenLemmatizer.flushUnresolved();
+		UnresolvedFormSketch sketch = UnresolvedFormSketch.getInstance();
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug("Most frequent unresolved forms (count, error, language, POS, form):");
+			for (UnresolvedFormSketch.Entry entry : sketch.getTop(20)) LOGGER.debug("  " + entry);
+		}
+		if (unresolvedFormsDumpFile != null && sketch.finishRun(unresolvedFormsDumpFile)) {
+			try {
+				sketch.dump(unresolvedFormsDumpFile, UnresolvedFormSketch.CAPACITY);
+			} catch (GateRuntimeException ex) {
+				LOGGER.error("Could not write the unresolved forms", ex);
+			}
+		}
+		unresolvedFormsDumpFile = null;
 	}
 
 	@Override
 	protected void finishedNoDocument(Controller ctrl, Throwable t) {}
 
+	@Override
+	public void cleanup() {
+		releaseResources();
+		super.cleanup();
+	}
+
+	/**
+	 * Gives up this PR's reference to the language resources, so that they can be garbage
+	 * collected once no other PR uses them.
+	 */
+	private void releaseResources() {
+		if (resources == null) return;
+		resources.release();
+		resources = null;
+		tokenLemmatizer = null;
+	}
+
 	public static Map<String, String> emptyDictionary() {
 		return new HashMap<>();
 	}
 
+	/**
+	 * Reads a word list with lines like "lemma===form1;form2;", gzipped if the file name ends with .gz.
+	 *
+	 * @return the lemma of each lowercase form
+	 */
 	public static Map<String, String> loadDictionary(File dictFile) {
 		Map<String, String> map = new HashMap<>();
 		if (!dictFile.exists()) {
@@ -423,7 +397,8 @@ public class DictLemmatizerPR extends AbstractDocumentProcessor {
 			return map;
 		}
 
-		try (BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(dictFile)), "UTF-8"))) {
+		try (InputStream stream = dictFile.getName().endsWith(".gz") ? new GZIPInputStream(new FileInputStream(dictFile)) : new FileInputStream(dictFile);
+				 BufferedReader in = new BufferedReader(new InputStreamReader(stream, "UTF-8"))) {
 			String str;
 			while ((str = in.readLine()) != null) {
 				if (!"".equals(str.trim())) {
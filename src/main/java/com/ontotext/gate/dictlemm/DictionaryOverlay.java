@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Lemmatizer
+ * (see https://github.com/GateNLP/gateplugin-Lemmatizer)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ontotext.gate.dictlemm;
+
+import gate.util.GateRuntimeException;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * User-supplied word lists which take precedence over the bundled ones and are reloaded while
+ * the lemmatizer is running.
+ * <p>
+ * The overlay directory has the same layout as resources/dictionaries: one directory per language
+ * with a file per part of speech, named like the bundled lists (NOUN-Dict.txt.gz ...) or without
+ * the .gz extension for plain text, in the format read by
+ * {@link DictLemmatizerPR#loadDictionary(File)}.
+ * <p>
+ * A daemon thread watches the directory of the language. Once changes have settled for
+ * {@link #SETTLE_MILLIS}, all lists are loaded into new maps which are then published by
+ * replacing a single volatile reference, so lookups never block and always see either the old or
+ * the new lists complete. If the size or modification time of a list changes while the lists are
+ * loaded, they are loaded again later, and if a list cannot be read, the old lists stay in place
+ * until the next change. A writer which pauses for longer than the settle time cannot be told
+ * from a finished one though, so lists should be replaced by writing them under another name
+ * and renaming them.
+ * <p>
+ * If the directory is deleted, the lists are dropped and the directory is watched again once it
+ * has been created anew.
+ */
+public class DictionaryOverlay {
+	private static final Logger LOGGER = Logger.getLogger(DictionaryOverlay.class);
+
+	/** The time without further changes before the lists are reloaded. */
+	public static final long SETTLE_MILLIS = 500;
+
+	private final File langDir;
+	private final WatchService watchService;
+	private final Thread watcher;
+	private volatile Map<PartOfSpeech, CompactDictionary> dictionaries;
+
+	private DictionaryOverlay(File langDir) throws IOException {
+		this.langDir = langDir;
+		this.dictionaries = load(langDir);
+		this.watchService = FileSystems.getDefault().newWatchService();
+		register();
+		this.watcher = new Thread(this::watch, "DictionaryOverlay-" + langDir.getName());
+		this.watcher.setDaemon(true);
+		this.watcher.start();
+	}
+
+	/**
+	 * Loads the overlay lists of a language and starts watching them.
+	 *
+	 * @param overlayDir the overlay directory with a sub-directory per language
+	 * @param langCode   the language code
+	 * @return the overlay or null if there is no directory for the language
+	 */
+	public static DictionaryOverlay open(File overlayDir, String langCode) {
+		File langDir = new File(overlayDir, langCode);
+		if (!langDir.isDirectory()) {
+			LOGGER.warn("overlay directory " + langDir + " does not exist, not using overlay lists for " + langCode);
+			return null;
+		}
+
+		try {
+			return new DictionaryOverlay(langDir);
+		} catch (IOException ex) {
+			throw new GateRuntimeException("Could not watch overlay directory " + langDir, ex);
+		}
+	}
+
+	/** @return the lemma of a lowercase form from the overlay list of a part of speech or null */
+	public String get(PartOfSpeech pos, String form) {
+		CompactDictionary dictionary = dictionaries.get(pos);
+		return dictionary == null ? null : dictionary.get(form);
+	}
+
+	/** @return the lemma of the lower case of a range of a text, see {@link CompactDictionary#getLowerCase(String, int, int)} */
+	public String getLowerCase(PartOfSpeech pos, String text, int start, int end) {
+		CompactDictionary dictionary = dictionaries.get(pos);
+		return dictionary == null ? null : dictionary.getLowerCase(text, start, end);
+	}
+
+	/** @return the number of forms in the current lists */
+	public int size() {
+		int size = 0;
+		for (CompactDictionary dictionary : dictionaries.values()) size += dictionary.size();
+		return size;
+	}
+
+	/** Stops watching the directory. */
+	public void close() {
+		try {
+			watchService.close();
+		} catch (IOException ex) {
+			LOGGER.warn("Could not close the watch service for " + langDir, ex);
+		}
+		watcher.interrupt();
+	}
+
+	/** Reloads all lists now and publishes them, keeping the old ones if one cannot be read. */
+	public void reload() {
+		try {
+			dictionaries = load(langDir);
+			LOGGER.info("overlay lists in " + langDir + " reloaded, " + size() + " forms");
+		} catch (GateRuntimeException ex) {
+			LOGGER.warn("Could not reload overlay lists in " + langDir + ", keeping the previous ones", ex);
+		}
+	}
+
+	private void register() throws IOException {
+		langDir.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+	}
+
+	private void watch() {
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				boolean changed = pollEvents(key);
+
+				// wait until files have been written completely, an editor or a copy usually fires several events
+				while ((key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) changed |= pollEvents(key);
+				if (changed) reloadWhenStable();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException ex) {
+			LOGGER.debug("stopped watching " + langDir);
+		} catch (IOException ex) {
+			LOGGER.error("Could not watch overlay directory " + langDir + " again, the overlay lists are not reloaded any more", ex);
+		}
+	}
+
+	private boolean pollEvents(WatchKey key) throws InterruptedException, IOException {
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) changed = true;
+			else if (((Path) event.context()).getFileName().toString().contains("-Dict.txt")) changed = true;
+		}
+		if (!key.reset()) {
+			// the directory has been deleted or moved, its lists are gone until it is back
+			LOGGER.warn("overlay directory " + langDir + " is gone, waiting for it to be created again");
+			dictionaries = Collections.emptyMap();
+			while (true) {
+				try {
+					register();
+					break;
+				} catch (NoSuchFileException | NotDirectoryException ex) {
+					Thread.sleep(SETTLE_MILLIS);
+				}
+			}
+			LOGGER.info("watching overlay directory " + langDir + " again");
+			changed = true;
+		}
+		return changed;
+	}
+
+	/**
+	 * Reloads the lists unless the size or modification time of one of them changes meanwhile,
+	 * which means it is still being written. Then it is tried again when that has settled.
+	 */
+	private void reloadWhenStable() throws InterruptedException {
+		while (true) {
+			List<String> before = fileStates(langDir);
+			Map<PartOfSpeech, CompactDictionary> loaded;
+			try {
+				loaded = load(langDir);
+			} catch (GateRuntimeException ex) {
+				if (!before.equals(fileStates(langDir))) {
+					Thread.sleep(SETTLE_MILLIS);
+					continue;
+				}
+				LOGGER.warn("Could not reload overlay lists in " + langDir + ", keeping the previous ones", ex);
+				return;
+			}
+			if (before.equals(fileStates(langDir))) {
+				dictionaries = loaded;
+				LOGGER.info("overlay lists in " + langDir + " reloaded, " + size() + " forms");
+				return;
+			}
+			LOGGER.debug("overlay lists in " + langDir + " changed while loading them, loading them again");
+			Thread.sleep(SETTLE_MILLIS);
+		}
+	}
+
+	/** @return the name, size and modification time of each list file */
+	private static List<String> fileStates(File langDir) {
+		List<String> states = new ArrayList<>();
+		for (PartOfSpeech pos : PartOfSpeech.values()) {
+			for (File dictFile : dictFiles(langDir, pos)) {
+				if (dictFile.exists()) states.add(dictFile.getName() + ":" + dictFile.length() + ":" + dictFile.lastModified());
+			}
+		}
+		return states;
+	}
+
+	/** @return the gzipped and the plain list file of a part of speech, the former takes precedence */
+	private static File[] dictFiles(File langDir, PartOfSpeech pos) {
+		return new File[]{new File(langDir, pos.getDictionaryFileName()), new File(langDir, pos.getDictionaryFileName().replaceFirst("\\.gz$", ""))};
+	}
+
+	private static Map<PartOfSpeech, CompactDictionary> load(File langDir) {
+		Map<PartOfSpeech, CompactDictionary> loaded = new EnumMap<>(PartOfSpeech.class);
+		for (PartOfSpeech pos : PartOfSpeech.values()) {
+			File[] dictFiles = dictFiles(langDir, pos);
+			File dictFile = dictFiles[0].exists() ? dictFiles[0] : dictFiles[1];
+			if (!dictFile.exists()) continue;
+			loaded.put(pos, CompactDictionary.of(DictLemmatizerPR.loadDictionary(dictFile)));
+		}
+		return Collections.unmodifiableMap(loaded);
+	}
+}
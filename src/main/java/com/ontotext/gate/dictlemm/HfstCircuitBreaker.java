@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Lemmatizer
+ * (see https://github.com/GateNLP/gateplugin-Lemmatizer)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ontotext.gate.dictlemm;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Turns HFST off for a language when too many of its analyses fail or are too slow.
+ * <p>
+ * Outcomes are counted in windows of {@link #WINDOW_SIZE} calls. If the share of failures in a
+ * window is above the threshold, the breaker opens and HFST is not asked for the open period,
+ * {@link #OPEN_MILLIS} milliseconds by default. After that a new window starts and the breaker
+ * trips again immediately if the failures persist.
+ * <p>
+ * One breaker is shared by all duplicates of a PR for the same language, so it is thread-safe.
+ */
+public class HfstCircuitBreaker {
+	private static final Logger LOGGER = Logger.getLogger(HfstCircuitBreaker.class);
+
+	public static final int WINDOW_SIZE = 200;
+	public static final long OPEN_MILLIS = 60000;
+
+	private final String langCode;
+	private final long openMillis;
+
+	private int calls = 0;
+	private int failures = 0;
+	private volatile long openUntil = 0;
+
+	public HfstCircuitBreaker(String langCode) {
+		this(langCode, OPEN_MILLIS);
+	}
+
+	public HfstCircuitBreaker(String langCode, long openMillis) {
+		this.langCode = langCode;
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * @return true if HFST may be asked, false while the breaker is open
+	 */
+	public boolean allowRequest() {
+		long until = openUntil;
+		return until == 0 || System.currentTimeMillis() >= until;
+	}
+
+	/**
+	 * Records the outcome of one HFST call.
+	 *
+	 * @param failed         true if the call threw an exception or exceeded its time budget
+	 * @param maxFailureRate the share of failures in a window above which the breaker opens
+	 */
+	public synchronized void record(boolean failed, double maxFailureRate) {
+		calls += 1;
+		if (failed) failures += 1;
+		if (calls < WINDOW_SIZE) return;
+
+		if ((double) failures / calls > maxFailureRate) {
+			openUntil = System.currentTimeMillis() + openMillis;
+			LOGGER.warn("HFST for " + langCode + " failed for " + failures + " of the last " + calls + " tokens, not using it for the next " + openMillis + " ms");
+		} else {
+			openUntil = 0;
+		}
+		calls = 0;
+		failures = 0;
+	}
+}
@@ -25,6 +25,8 @@ import fi.seco.hfst.Transducer.Result;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.List;
 import java.util.zip.GZIPInputStream;
 
@@ -38,26 +40,49 @@ import java.util.zip.GZIPInputStream;
 public class HfstLemmatizer {
 	private Transducer transducer = null;
 	private String langCode = null;
+	private long modelSize = 0;
 
 	protected HfstLemmatizer(Transducer t, String langCode) {
 		transducer = t;
 		this.langCode = langCode;
 	}
 
+	/**
+	 * The estimated number of bytes retained by the transducer, which is about the size of the
+	 * uncompressed model.
+	 */
+	public long estimatedBytes() {
+		return modelSize;
+	}
+
 	public static HfstLemmatizer load(File resourceFile, String langCode) throws Exception {
 		Transducer tr;
 		// TODO: the TransducerHeader and WeightedTransducer etc classes cannot
 		// handle InputStream they need FileInputStream so it is not possible
 		// to do on-the-fly compression of the model files. Would need to
 		// change the library or find a version that can do this.
-		FileInputStream ifs = new FileInputStream(resourceFile);
-		GZIPInputStream gis = new GZIPInputStream(ifs);
-		TransducerStream ts = new TransducerStream(new DataInputStream(gis));
-		TransducerHeader h = new TransducerHeader(ts);
-		TransducerAlphabet a = new TransducerAlphabet(ts, h.getSymbolCount());
-		if (h.isWeighted()) tr = new WeightedTransducer(ts, h, a);
-		else tr = new UnweightedTransducer(ts, h, a);
-		return new HfstLemmatizer(tr, langCode);
+		try (GZIPInputStream gis = new GZIPInputStream(new FileInputStream(resourceFile))) {
+			TransducerStream ts = new TransducerStream(new DataInputStream(gis));
+			TransducerHeader h = new TransducerHeader(ts);
+			TransducerAlphabet a = new TransducerAlphabet(ts, h.getSymbolCount());
+			if (h.isWeighted()) tr = new WeightedTransducer(ts, h, a);
+			else tr = new UnweightedTransducer(ts, h, a);
+		}
+		HfstLemmatizer lemmatizer = new HfstLemmatizer(tr, langCode);
+		lemmatizer.modelSize = uncompressedSize(resourceFile);
+		return lemmatizer;
+	}
+
+	/**
+	 * Reads the uncompressed size (modulo 2^32) from the trailer of a gzip file.
+	 */
+	private static long uncompressedSize(File gzipFile) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(gzipFile, "r")) {
+			if (raf.length() < 4) return 0;
+			raf.seek(raf.length() - 4);
+			int b0 = raf.read(), b1 = raf.read(), b2 = raf.read(), b3 = raf.read();
+			return ((long) b3 << 24 | b2 << 16 | b1 << 8 | b0) & 0xffffffffL;
+		}
 	}
 
 	public String getLemma(String aWord, String aPOSType) throws Exception {
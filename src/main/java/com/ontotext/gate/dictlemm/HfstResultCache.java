@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Lemmatizer
+ * (see https://github.com/GateNLP/gateplugin-Lemmatizer)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ontotext.gate.dictlemm;
+
+import gate.util.GateRuntimeException;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent cache of HFST results which survives the JVM.
+ * <p>
+ * There is one cache file per language and transducer model. Its name contains a checksum of the
+ * model file, so a changed model never sees the results of the old one and the files of old models
+ * are deleted when the cache is opened. The file is memory-mapped read-only and searched in place,
+ * results found during the current run are kept in memory until {@link #flush()} writes the
+ * merged, sorted entries to a new file which then replaces the old one.
+ * <p>
+ * File layout: magic, entry count, the offsets of the entries sorted by key, then the entries,
+ * each a key and a value with a short length prefix. The key is the POS tag and the word separated
+ * by a tab, the value is the lemma or the empty string if HFST found none. All strings are UTF-8.
+ * <p>
+ * One cache is shared by all duplicates of a PR for the same language, so it is thread-safe.
+ */
+public class HfstResultCache {
+	private static final Logger LOGGER = Logger.getLogger(HfstResultCache.class);
+
+	private static final int MAGIC = 0x48524331; // "HRC1"
+	private static final String SUFFIX = ".hfstcache";
+
+	/** No more new results are remembered once this many are waiting to be written. */
+	public static final int MAX_PENDING = 1000000;
+
+	/** Longer words and lemmata are not cached, their UTF-8 form must fit the short length prefix. */
+	public static final int MAX_LENGTH = 1000;
+
+	private static final Map<String, Object> FILE_LOCKS = new ConcurrentHashMap<>();
+
+	private final File file;
+	private final Map<String, String> pending = new ConcurrentHashMap<>();
+	private volatile Mapped mapped;
+
+	private HfstResultCache(File file, Mapped mapped) {
+		this.file = file;
+		this.mapped = mapped;
+	}
+
+	/**
+	 * Opens the cache for a transducer model, creating the directory if needed.
+	 *
+	 * @param cacheDir  the directory with the cache files
+	 * @param modelFile the transducer model the results are computed with
+	 * @param langCode  the language of the model
+	 */
+	public static HfstResultCache open(File cacheDir, File modelFile, String langCode) {
+		try {
+			if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) throw new IOException("cannot create directory " + cacheDir);
+
+			String name = langCode + "-" + checksum(modelFile) + SUFFIX;
+			File[] stale = cacheDir.listFiles((dir, n) -> n.startsWith(langCode + "-") && n.endsWith(SUFFIX) && !n.equals(name));
+			if (stale != null) for (File f : stale) {
+				LOGGER.debug("deleting HFST cache of another model: " + f);
+				Files.deleteIfExists(f.toPath());
+			}
+
+			File file = new File(cacheDir, name);
+			HfstResultCache cache = new HfstResultCache(file, Mapped.map(file));
+			LOGGER.debug("HFST cache " + file + " has " + cache.mapped.count + " entries");
+			return cache;
+		} catch (IOException ex) {
+			throw new GateRuntimeException("Could not open HFST cache in " + cacheDir, ex);
+		}
+	}
+
+	/**
+	 * @return the cached lemma, the empty string if HFST is known to find no lemma, or null if the
+	 * word has not been seen yet
+	 */
+	public String get(String word, String pos) {
+		String key = pos + '\t' + word;
+		String value = pending.get(key);
+		if (value == null) value = mapped.get(key.getBytes(StandardCharsets.UTF_8));
+		return value;
+	}
+
+	/**
+	 * Remembers a HFST result to be written with the next {@link #flush()}.
+	 *
+	 * @param lemma the lemma or null if HFST found none
+	 */
+	public void put(String word, String pos, String lemma) {
+		if (word.length() + pos.length() >= MAX_LENGTH || (lemma != null && lemma.length() > MAX_LENGTH)) return;
+		if (pending.size() < MAX_PENDING) pending.put(pos + '\t' + word, lemma == null ? "" : lemma);
+	}
+
+	/** The number of entries in the cache file. */
+	public int size() {
+		return mapped.count;
+	}
+
+	/**
+	 * Merges the new results into the cache file. This writes a complete new file next to the old
+	 * one and moves it in its place, so readers in this or another JVM never see a partial file.
+	 * Writers hold a lock on a file next to the cache and merge with the cache file as it is then,
+	 * so the results of other pipelines and JVMs which flush at the same time are kept.
+	 */
+	public synchronized void flush() {
+		if (pending.isEmpty()) return;
+
+		// file locks are held by the JVM, so caches of this JVM on the same file are serialized first
+		Object jvmLock = FILE_LOCKS.computeIfAbsent(file.getAbsolutePath(), path -> new Object());
+		synchronized (jvmLock) {
+			File lockFile = new File(file.getParentFile(), file.getName() + ".lock");
+			try (RandomAccessFile raf = new RandomAccessFile(lockFile, "rw"); FileChannel channel = raf.getChannel()) {
+				FileLock lock = channel.lock();
+				try {
+					merge(Mapped.map(file));
+				} finally {
+					lock.release();
+				}
+			} catch (IOException ex) {
+				LOGGER.error("Could not write HFST cache " + file, ex);
+			}
+		}
+	}
+
+	private void merge(Mapped old) throws IOException {
+		List<String> written = new ArrayList<>(pending.keySet());
+		byte[][] keys = new byte[old.count + written.size()][];
+		byte[][] values = new byte[keys.length][];
+		int n = 0;
+		for (String key : written) {
+			keys[n] = key.getBytes(StandardCharsets.UTF_8);
+			values[n] = pending.get(key).getBytes(StandardCharsets.UTF_8);
+			n += 1;
+		}
+		for (int i = 0; i < old.count; i++) {
+			byte[] key = old.key(i);
+			if (!pending.containsKey(new String(key, StandardCharsets.UTF_8))) {
+				keys[n] = key;
+				values[n] = old.value(i);
+				n += 1;
+			}
+		}
+
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) order[i] = i;
+		Arrays.sort(order, (a, b) -> compare(keys[a], keys[b]));
+
+		Path tmp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(n);
+				int offset = 8 + 4 * n;
+				for (Integer i : order) {
+					out.writeInt(offset);
+					offset += 4 + keys[i].length + values[i].length;
+				}
+				for (Integer i : order) {
+					out.writeShort(keys[i].length);
+					out.write(keys[i]);
+					out.writeShort(values[i].length);
+					out.write(values[i]);
+				}
+			}
+			Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		mapped = Mapped.map(file);
+		for (String key : written) pending.remove(key);
+		LOGGER.debug("HFST cache " + file + " now has " + n + " entries");
+	}
+
+	private static int compare(byte[] a, byte[] b) {
+		int length = Math.min(a.length, b.length);
+		for (int i = 0; i < length; i++) {
+			int c = (a[i] & 0xff) - (b[i] & 0xff);
+			if (c != 0) return c;
+		}
+		return a.length - b.length;
+	}
+
+	private static String checksum(File modelFile) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[65536];
+		try (InputStream in = new FileInputStream(modelFile)) {
+			int read;
+			while ((read = in.read(buffer)) > 0) crc.update(buffer, 0, read);
+		}
+		return Long.toHexString(crc.getValue());
+	}
+
+	/**
+	 * The memory-mapped content of a cache file. Only absolute reads are used on the buffer, so
+	 * it can be searched by many threads at once.
+	 */
+	private static class Mapped {
+		static final Mapped EMPTY = new Mapped(ByteBuffer.allocate(8), 0);
+
+		final ByteBuffer buffer;
+		final int count;
+
+		Mapped(ByteBuffer buffer, int count) {
+			this.buffer = buffer;
+			this.count = count;
+		}
+
+		static Mapped map(File file) throws IOException {
+			if (!file.exists()) return EMPTY;
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				String problem = validate(buffer);
+				if (problem != null) {
+					LOGGER.warn("ignoring invalid HFST cache " + file + ": " + problem);
+					return EMPTY;
+				}
+				return new Mapped(buffer, buffer.getInt(4));
+			}
+		}
+
+		/**
+		 * Checks that every offset and length is within the buffer, so that a truncated or corrupt
+		 * file cannot make lookups fail.
+		 *
+		 * @return what is wrong or null if the content is valid
+		 */
+		private static String validate(ByteBuffer buffer) {
+			int limit = buffer.limit();
+			if (limit < 8 || buffer.getInt(0) != MAGIC) return "no cache file";
+			int count = buffer.getInt(4);
+			long entriesStart = 8 + 4L * count;
+			if (count < 0 || entriesStart > limit) return "bad entry count " + count;
+			for (int i = 0; i < count; i++) {
+				long offset = buffer.getInt(8 + 4 * i);
+				if (offset < entriesStart || offset + 2 > limit) return "bad offset of entry " + i;
+				long valueOffset = offset + 2 + (buffer.getShort((int) offset) & 0xffff);
+				if (valueOffset + 2 > limit) return "bad key length of entry " + i;
+				if (valueOffset + 2 + (buffer.getShort((int) valueOffset) & 0xffff) > limit) return "bad value length of entry " + i;
+			}
+			return null;
+		}
+
+		String get(byte[] key) {
+			int low = 0;
+			int high = count - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int offset = offset(mid);
+				int c = compareKey(offset, key);
+				if (c < 0) low = mid + 1;
+				else if (c > 0) high = mid - 1;
+				else {
+					int valueOffset = offset + 2 + (buffer.getShort(offset) & 0xffff);
+					return new String(bytes(valueOffset), StandardCharsets.UTF_8);
+				}
+			}
+			return null;
+		}
+
+		byte[] key(int i) {
+			return bytes(offset(i));
+		}
+
+		byte[] value(int i) {
+			int offset = offset(i);
+			return bytes(offset + 2 + (buffer.getShort(offset) & 0xffff));
+		}
+
+		private int offset(int i) {
+			return buffer.getInt(8 + 4 * i);
+		}
+
+		private int compareKey(int offset, byte[] key) {
+			int length = buffer.getShort(offset) & 0xffff;
+			int common = Math.min(length, key.length);
+			for (int i = 0; i < common; i++) {
+				int c = (buffer.get(offset + 2 + i) & 0xff) - (key[i] & 0xff);
+				if (c != 0) return c;
+			}
+			return length - key.length;
+		}
+
+		private byte[] bytes(int offset) {
+			int length = buffer.getShort(offset) & 0xffff;
+			byte[] bytes = new byte[length];
+			for (int i = 0; i < length; i++) bytes[i] = buffer.get(offset + 2 + i);
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Lemmatizer
+ * (see https://github.com/GateNLP/gateplugin-Lemmatizer)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ontotext.gate.dictlemm;
+
+import gate.util.GateRuntimeException;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The word lists, suffix guessers and transducer of one language.
+ * <p>
+ * They are loaded once per plugin resources directory and language and shared by all PRs which
+ * use them, including the duplicates of a PR and PRs of different pipelines. Every user must
+ * {@link #acquire(File, String)} them and {@link #release()} them when done, the last release drops
+ * all references so the memory can be reclaimed.
+ * <p>
+ * Everything is read-only once loaded, so the resources can be used by many threads at once.
+ */
+public class LanguageResources {
+	private static final Logger LOGGER = Logger.getLogger(LanguageResources.class);
+
+	// all resources which are in use, guarded by itself
+	private static final Map<String, LanguageResources> LOADED = new HashMap<>();
+
+	private final String key;
+	private final File resourcesDir;
+	private final String langCode;
+
+	private int references = 0;  // guarded by LOADED
+	private boolean loaded = false;
+
+	private final Map<PartOfSpeech, CompactDictionary> dictionaries = new EnumMap<>(PartOfSpeech.class);
+	private volatile Map<PartOfSpeech, SuffixLemmaGuesser> guessers = null;
+	private File hfstModelFile = null;
+	private HfstLemmatizer hfstLemmatizer = null;  // if null we do not have a FST
+	private final HfstCircuitBreaker circuitBreaker;
+	private final Map<String, HfstResultCache> resultCaches = new ConcurrentHashMap<>();
+	private final Map<String, Optional<DictionaryOverlay>> overlays = new ConcurrentHashMap<>();
+
+	private final Map<String, Long> estimatedBytes = Collections.synchronizedMap(new LinkedHashMap<>());
+	private long hashMapBytes = 0;  // what the word lists would take as hash maps
+
+	private LanguageResources(String key, File resourcesDir, String langCode) {
+		this.key = key;
+		this.resourcesDir = resourcesDir;
+		this.langCode = langCode;
+		this.circuitBreaker = new HfstCircuitBreaker(langCode);
+	}
+
+	/**
+	 * Gets the resources of a language, loading them if nobody uses them yet.
+	 *
+	 * @param resourcesDir the resources directory of the plugin with the dictionaries and lemmaModels directories
+	 * @param langCode     the language code
+	 */
+	public static LanguageResources acquire(File resourcesDir, String langCode) {
+		return acquire(resourcesDir, langCode, null);
+	}
+
+	/**
+	 * Gets the resources of a language, loading them if nobody uses them yet.
+	 *
+	 * @param resourcesDir the resources directory of the plugin with the dictionaries and lemmaModels directories
+	 * @param langCode     the language code
+	 * @param requester    the PR or other object which needs them, reported in the GATE benchmark if it loads them
+	 */
+	public static LanguageResources acquire(File resourcesDir, String langCode, Object requester) {
+		String key = resourcesDir.getAbsolutePath() + File.pathSeparator + langCode;
+		LanguageResources resources;
+		synchronized (LOADED) {
+			if (LOADED.isEmpty()) UnresolvedFormSketch.registerMBean();
+			resources = LOADED.get(key);
+			if (resources == null) {
+				resources = new LanguageResources(key, resourcesDir, langCode);
+				LOADED.put(key, resources);
+			}
+			resources.references += 1;
+		}
+
+		try {
+			resources.load(requester == null ? resources : requester);
+		} catch (RuntimeException ex) {
+			resources.release();
+			throw ex;
+		}
+		return resources;
+	}
+
+	/**
+	 * Gives up one reference to the resources. When the last one is gone, the HFST caches are
+	 * written, the overlay directories are no longer watched and all word lists, guessers and the
+	 * transducer are dropped.
+	 */
+	public void release() {
+		synchronized (LOADED) {
+			references -= 1;
+			if (references > 0) return;
+			LOADED.remove(key);
+			if (LOADED.isEmpty()) UnresolvedFormSketch.unregisterMBean();
+		}
+
+		LOGGER.debug("releasing resources for " + langCode + ", about " + getTotalEstimatedBytes() + " bytes");
+		for (HfstResultCache cache : resultCaches.values()) cache.flush();
+		for (Optional<DictionaryOverlay> overlay : overlays.values()) overlay.ifPresent(DictionaryOverlay::close);
+		synchronized (this) {
+			resultCaches.clear();
+			overlays.clear();
+			dictionaries.clear();
+			guessers = null;
+			hfstLemmatizer = null;
+			estimatedBytes.clear();
+			hashMapBytes = 0;
+		}
+	}
+
+	/** @return true if these are the resources of the language in the resources directory */
+	public boolean isFor(File resourcesDir, String langCode) {
+		return this.resourcesDir.getAbsolutePath().equals(resourcesDir.getAbsolutePath()) && this.langCode.equals(langCode);
+	}
+
+	public String getLanguageCode() {
+		return langCode;
+	}
+
+	/** @return the form to lemma map of a part of speech, empty if there is no list */
+	public CompactDictionary getDictionary(PartOfSpeech pos) {
+		return dictionaries.get(pos);
+	}
+
+	/** @return the suffix guesser of a part of speech or null if there is none or they have not been built */
+	public SuffixLemmaGuesser getGuesser(PartOfSpeech pos) {
+		Map<PartOfSpeech, SuffixLemmaGuesser> guessers = this.guessers;
+		return guessers == null ? null : guessers.get(pos);
+	}
+
+	/** @return the transducer or null if there is none for the language or HFST is disabled */
+	public HfstLemmatizer getHfstLemmatizer() {
+		return hfstLemmatizer;
+	}
+
+	/** The circuit breaker of the transducer, shared by everybody using it. */
+	public HfstCircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	/**
+	 * @return the persistent cache of the transducer results in a directory or null if there is no transducer
+	 */
+	public HfstResultCache getResultCache(File cacheDir) {
+		if (hfstLemmatizer == null) return null;
+		return resultCaches.computeIfAbsent(cacheDir.getAbsolutePath(), k -> HfstResultCache.open(cacheDir, hfstModelFile, langCode));
+	}
+
+	/**
+	 * The directory of the language is looked up once, if it is created later it is only used after
+	 * the resources have been released and loaded again.
+	 *
+	 * @return the watched overlay word lists of the language in a directory or null if the directory has none
+	 */
+	public DictionaryOverlay getOverlay(File overlayDir) {
+		return overlays.computeIfAbsent(overlayDir.getAbsolutePath(), k -> Optional.ofNullable(DictionaryOverlay.open(overlayDir, langCode))).orElse(null);
+	}
+
+	/**
+	 * Learns the suffix guessers from the word lists, unless this has been done already.
+	 */
+	public synchronized void buildGuessers() {
+		if (guessers != null) return;
+
+		LOGGER.debug("building suffix guessers for " + langCode);
+		Map<PartOfSpeech, SuffixLemmaGuesser> built = new EnumMap<>(PartOfSpeech.class);
+		for (PartOfSpeech pos : PartOfSpeech.values()) {
+			if (!pos.isOpenClass()) continue;
+			SuffixLemmaGuesser guesser = SuffixLemmaGuesser.buildUnlessEmpty(dictionaries.get(pos));
+			if (guesser != null) {
+				built.put(pos, guesser);
+				estimatedBytes.put(pos.name() + ".guesser", guesser.estimatedBytes());
+			}
+		}
+		guessers = built;
+		LOGGER.debug("suffix guessers built");
+	}
+
+	/**
+	 * The estimated number of bytes retained by each word list ("NOUN", "VERB" ...), suffix guesser
+	 * ("NOUN.guesser" ...) and the transducer ("HFST"). The numbers assume a 64 bit JVM with
+	 * compressed references and compact strings.
+	 */
+	public Map<String, Long> getEstimatedBytes() {
+		synchronized (estimatedBytes) {
+			return new LinkedHashMap<>(estimatedBytes);
+		}
+	}
+
+	public long getTotalEstimatedBytes() {
+		long total = 0;
+		for (long bytes : getEstimatedBytes().values()) total += bytes;
+		return total;
+	}
+
+	/**
+	 * The estimated number of bytes saved by storing the word lists in {@link CompactDictionary}
+	 * instances rather than hash maps.
+	 */
+	public synchronized long getDictionarySavedBytes() {
+		long saved = hashMapBytes;
+		for (PartOfSpeech pos : PartOfSpeech.values()) {
+			Long bytes = estimatedBytes.get(pos.name());
+			if (bytes != null) saved -= bytes;
+		}
+		return saved;
+	}
+
+	/**
+	 * @return the estimated bytes of all resources in use by resources directory and language,
+	 *         joined by the path separator, and part
+	 * @see #getEstimatedBytes()
+	 */
+	public static Map<String, Map<String, Long>> memoryReport() {
+		Map<String, Map<String, Long>> report = new TreeMap<>();
+		synchronized (LOADED) {
+			for (Map.Entry<String, LanguageResources> entry : LOADED.entrySet()) report.put(entry.getKey(), entry.getValue().getEstimatedBytes());
+		}
+		return report;
+	}
+
+	private synchronized void load(Object requester) {
+		if (loaded) return;
+
+		// if there are no dictionaries or the use of dictionaries has been disabled,
+		// create empty ones, and only the hfst is used.
+		// Otherwise load the dictionaries, at least the ones which are there
+		File dictDir = new File(new File(resourcesDir, "dictionaries"), langCode);
+		boolean noLists = false;
+		if (!dictDir.exists()) {
+			LOGGER.debug("List directory " + dictDir + " for language " + langCode + " does not exist, not using lists.");
+			noLists = true;
+		}
+		if (isSet(System.getProperty("gateplugin-Lemmatizer.noLists"))) {
+			LOGGER.debug("gateplugin-Lemmatizer.noLists is set, not using lists");
+			noLists = true;
+		}
+		if (isSet(System.getenv("GATEPLUGIN_LEMMATIZER_NOLISTS"))) {
+			LOGGER.debug("GATEPLUGIN_LEMMATIZER_NOLISTS is set, not using lists");
+			noLists = true;
+		}
+
+		if (!noLists) LOGGER.debug("loading dictionaries for " + langCode);
+		for (PartOfSpeech pos : PartOfSpeech.values()) {
+			File dictFile = new File(dictDir, pos.getDictionaryFileName());
+			long start = System.nanoTime();
+			Object event = LemmatizerEvents.beginDictionaryLoad();
+			Map<String, String> dictionary;
+			if (noLists) dictionary = DictLemmatizerPR.emptyDictionary();
+			else dictionary = DictLemmatizerPR.loadDictionary(dictFile);
+			CompactDictionary compact = CompactDictionary.of(dictionary);
+			if (!noLists) LemmatizerEvents.endDictionaryLoad(event, start, requester, langCode, pos, dictFile, compact.size());
+			dictionaries.put(pos, compact);
+			estimatedBytes.put(pos.name(), compact.estimatedBytes());
+			hashMapBytes += estimateBytes(dictionary);
+		}
+		if (!noLists) {
+			long compactBytes = 0;
+			for (PartOfSpeech pos : PartOfSpeech.values()) compactBytes += estimatedBytes.get(pos.name());
+			LOGGER.info("dictionaries for " + langCode + " loaded, about " + compactBytes + " bytes instead of " + hashMapBytes
+					+ " as hash maps, " + getDictionarySavedBytes() + " bytes saved");
+		}
+
+		// Load the hfst lemmatizer if it exists for the language, otherwise
+		// the hfstLemmatizer variable remains null
+		File lemmatizerFile = new File(new File(resourcesDir, "lemmaModels"), langCode + ".hfst.ol.gz");
+		if (lemmatizerFile.exists()) {
+			if (isSet(System.getProperty("gateplugin-Lemmatizer.noHfst"))) {
+				LOGGER.debug("gateplugin-Lemmatizer.noHfst is set, not using  HFST");
+			} else if (isSet(System.getenv("GATEPLUGIN_LEMMATIZER_NOHFST"))) {
+				LOGGER.debug("GATEPLUGIN_LEMMATIZER_NOHFST is set, not using  HFST");
+			} else {
+				try {
+					LOGGER.debug("loading HFST model for " + langCode);
+					long start = System.nanoTime();
+					Object event = LemmatizerEvents.beginTransducerLoad();
+					hfstLemmatizer = HfstLemmatizer.load(lemmatizerFile, langCode);
+					LemmatizerEvents.endTransducerLoad(event, start, requester, langCode, lemmatizerFile, hfstLemmatizer.estimatedBytes());
+					hfstModelFile = lemmatizerFile;
+					estimatedBytes.put("HFST", hfstLemmatizer.estimatedBytes());
+					LOGGER.debug("HFST model loaded");
+				} catch (Exception ex) {
+					throw new GateRuntimeException("Could not load lemmatization transducer " + lemmatizerFile, ex);
+				}
+			}
+		}
+
+		loaded = true;
+		LOGGER.debug("resources for " + langCode + " retain about " + getTotalEstimatedBytes() + " bytes: " + estimatedBytes);
+	}
+
+	private static boolean isSet(String flag) {
+		return flag != null && !flag.toLowerCase().equals("false");
+	}
+
+	/**
+	 * Estimates the bytes which a HashMap of strings would retain. Lemma strings are shared between all
+	 * forms of a dictionary line, so each distinct value object is counted once.
+	 */
+	static long estimateBytes(Map<String, String> map) {
+		int capacity = 16;
+		while (capacity * 0.75 < map.size()) capacity *= 2;
+		long bytes = 48 + align(16 + 4L * capacity);
+
+		Set<String> values = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (Map.Entry<String, String> entry : map.entrySet()) {
+			bytes += 32 + estimateBytes(entry.getKey());
+			if (values.add(entry.getValue())) bytes += estimateBytes(entry.getValue());
+		}
+		return bytes;
+	}
+
+	/** Estimates the bytes of a string with its value array. */
+	static long estimateBytes(String string) {
+		boolean latin1 = true;
+		for (int i = 0; i < string.length() && latin1; i++) latin1 = string.charAt(i) < 256;
+		return 24 + align(16 + (latin1 ? 1L : 2L) * string.length());
+	}
+
+	static long align(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+}
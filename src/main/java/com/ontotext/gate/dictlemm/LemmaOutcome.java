@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Lemmatizer
+ * (see https://github.com/GateNLP/gateplugin-Lemmatizer)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ontotext.gate.dictlemm;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * How the lemma of a token was found. Together with the part of speech this gives the status
+ * codes of {@link DiagnosticsLevel#PER_TOKEN}, which are built once and shared, so that no string
+ * is concatenated per token.
+ */
+public enum LemmaOutcome {
+	NUMBER("number"),
+	PUNCT("punct"),
+	FOUND("-FOUND"),
+	GUESSED("-NOTFOUND-GUESSED"),
+	HFST_SKIPPED("-NOTFOUND-HFST_SKIPPED-NOHFST"),
+	HFST_CACHED_HAVE("-NOTFOUND-HFST_CACHED-HFST_HAVE"),
+	HFST_CACHED_EMPTY("-NOTFOUND-HFST_CACHED-HFST_EMPTY"),
+	HFST_BUDGET("-NOTFOUND-HFST_BUDGET-NOHFST"),
+	HFST_OFF("-NOTFOUND-HFST_OFF-NOHFST"),
+	HFST_HAVE("-NOTFOUND-HFST_HAVE"),
+	HFST_HAVE_SLOW("-NOTFOUND-HFST_HAVE-HFST_SLOW"),
+	HFST_EMPTY("-NOTFOUND-HFST_EMPTY"),
+	HFST_EMPTY_SLOW("-NOTFOUND-HFST_EMPTY-HFST_SLOW"),
+	HFST_ERROR("-NOTFOUND-HFST_ERROR"),
+	HFST_ERROR_SLOW("-NOTFOUND-HFST_ERROR-HFST_SLOW"),
+	NOHFST("-NOTFOUND-NOHFST");
+
+	/** Tags without a word list are rare, but arbitrary, so only this many get cached status codes. */
+	private static final int MAX_UNHANDLED_TAGS = 1000;
+
+	private static final String[][] STATUS = new String[PartOfSpeech.values().length][];
+	private static final Map<String, String[]> UNHANDLED_STATUS = new ConcurrentHashMap<>();
+
+	static {
+		for (PartOfSpeech pos : PartOfSpeech.values()) STATUS[pos.ordinal()] = statusCodes(pos.name());
+	}
+
+	private final String suffix;
+
+	LemmaOutcome(String suffix) {
+		this.suffix = suffix;
+	}
+
+	/**
+	 * @param pos the part of speech or null if there is no word list for the tag
+	 * @param tag the POS tag of the token
+	 * @return the status code, like "NOUN-NOTFOUND-HFST_HAVE" or "UNHANDLEDPOS-CC-NOTFOUND-NOHFST"
+	 */
+	public String status(PartOfSpeech pos, String tag) {
+		if (this == NUMBER || this == PUNCT) return suffix;
+		if (pos != null) return STATUS[pos.ordinal()][ordinal()];
+
+		String[] codes = UNHANDLED_STATUS.get(tag);
+		if (codes == null) {
+			if (UNHANDLED_STATUS.size() >= MAX_UNHANDLED_TAGS) return "UNHANDLEDPOS-" + tag + suffix;
+			codes = UNHANDLED_STATUS.computeIfAbsent(tag, t -> statusCodes("UNHANDLEDPOS-" + t));
+		}
+		return codes[ordinal()];
+	}
+
+	private static String[] statusCodes(String prefix) {
+		LemmaOutcome[] outcomes = values();
+		String[] codes = new String[outcomes.length];
+		for (LemmaOutcome outcome : outcomes) codes[outcome.ordinal()] = (prefix + outcome.suffix).intern();
+		return codes;
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Lemmatizer
+ * (see https://github.com/GateNLP/gateplugin-Lemmatizer)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ontotext.gate.dictlemm;
+
+import gate.util.Benchmark;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Java Flight Recorder events and GATE benchmark checkpoints for loading the resources and
+ * lemmatizing documents.
+ * <p>
+ * The events cost next to nothing unless a recording enables them. They are only created if the
+ * JVM has the jdk.jfr module, so the callers hold them as plain objects and never refer to the
+ * event classes themselves.
+ */
+final class LemmatizerEvents {
+	private static final boolean AVAILABLE = isAvailable();
+
+	private LemmatizerEvents() {}
+
+	@Name("com.ontotext.gate.dictlemm.DictionaryLoad")
+	@Label("Dictionary Load")
+	@Description("Loading the word list of a part of speech")
+	@Category({"GATE", "Lemmatizer"})
+	@StackTrace(false)
+	static class DictionaryLoad extends Event {
+		@Label("Language")
+		String language;
+
+		@Label("Part of Speech")
+		String pos;
+
+		@Label("File")
+		String file;
+
+		@Label("Forms")
+		int forms;
+	}
+
+	@Name("com.ontotext.gate.dictlemm.TransducerLoad")
+	@Label("Transducer Load")
+	@Description("Loading the HFST lemmatization transducer of a language")
+	@Category({"GATE", "Lemmatizer"})
+	@StackTrace(false)
+	static class TransducerLoad extends Event {
+		@Label("Language")
+		String language;
+
+		@Label("File")
+		String file;
+
+		@Label("Model Size")
+		@DataAmount
+		long modelSize;
+	}
+
+	@Name("com.ontotext.gate.dictlemm.DocumentLemmatization")
+	@Label("Document Lemmatization")
+	@Description("Lemmatizing the tokens of a document, with the time spent on the word lists and on HFST")
+	@Category({"GATE", "Lemmatizer"})
+	@StackTrace(false)
+	static class DocumentLemmatization extends Event {
+		@Label("Document")
+		String document;
+
+		@Label("Language")
+		String language;
+
+		@Label("Tokens")
+		int tokens;
+
+		@Label("List Lookup Time")
+		@Description("Time spent on the overlay and bundled word lists and the guessers")
+		@Timespan(Timespan.NANOSECONDS)
+		long listLookupTime;
+
+		@Label("HFST Calls")
+		int hfstCalls;
+
+		@Label("HFST Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long hfstTime;
+	}
+
+	/** @return a started dictionary load event or null */
+	static Object beginDictionaryLoad() {
+		if (!AVAILABLE) return null;
+		DictionaryLoad event = new DictionaryLoad();
+		event.begin();
+		return event;
+	}
+
+	static void endDictionaryLoad(Object event, long startNanos, Object requester, String language, PartOfSpeech pos, File file, int forms) {
+		checkPoint(startNanos, requester, "loadDictionary." + pos.name(), language, file);
+		if (event == null) return;
+		DictionaryLoad load = (DictionaryLoad) event;
+		load.end();
+		if (!load.shouldCommit()) return;
+		load.language = language;
+		load.pos = pos.name();
+		load.file = file.getPath();
+		load.forms = forms;
+		load.commit();
+	}
+
+	/** @return a started transducer load event or null */
+	static Object beginTransducerLoad() {
+		if (!AVAILABLE) return null;
+		TransducerLoad event = new TransducerLoad();
+		event.begin();
+		return event;
+	}
+
+	static void endTransducerLoad(Object event, long startNanos, Object requester, String language, File file, long modelSize) {
+		checkPoint(startNanos, requester, "loadTransducer", language, file);
+		if (event == null) return;
+		TransducerLoad load = (TransducerLoad) event;
+		load.end();
+		if (!load.shouldCommit()) return;
+		load.language = language;
+		load.file = file.getPath();
+		load.modelSize = modelSize;
+		load.commit();
+	}
+
+	/** @return a started document event or null */
+	static Object beginDocument() {
+		if (!AVAILABLE) return null;
+		DocumentLemmatization event = new DocumentLemmatization();
+		event.begin();
+		return event;
+	}
+
+	/** @return true if the phases of a document should be timed for its event or for the GATE benchmark */
+	static boolean isTimed(Object documentEvent) {
+		return Benchmark.isBenchmarkingEnabled() || (documentEvent != null && ((Event) documentEvent).isEnabled());
+	}
+
+	static void endDocument(Object event, String document, String language, int tokens, long listLookupNanos, int hfstCalls, long hfstNanos) {
+		if (event == null) return;
+		DocumentLemmatization lemmatization = (DocumentLemmatization) event;
+		lemmatization.end();
+		if (!lemmatization.shouldCommit()) return;
+		lemmatization.document = document;
+		lemmatization.language = language;
+		lemmatization.tokens = tokens;
+		lemmatization.listLookupTime = listLookupNanos;
+		lemmatization.hfstCalls = hfstCalls;
+		lemmatization.hfstTime = hfstNanos;
+		lemmatization.commit();
+	}
+
+	/**
+	 * Records a GATE benchmark checkpoint for loading a resource. Loading is shared by all PRs, so
+	 * the benchmark id is "DictLemmatizer.language.step" rather than that of the PR which happened to
+	 * load it, which is reported as the invoking object.
+	 */
+	private static void checkPoint(long startNanos, Object requester, String step, String language, File file) {
+		if (!Benchmark.isBenchmarkingEnabled()) return;
+		Map<Object, Object> features = new HashMap<>();
+		features.put("file", file.getPath());
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+		Benchmark.checkPointWithDuration(millis, Benchmark.createBenchmarkId(step, "DictLemmatizer." + language), requester, features);
+	}
+
+	private static boolean isAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (ClassNotFoundException | LinkageError ex) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Lemmatizer
+ * (see https://github.com/GateNLP/gateplugin-Lemmatizer)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ontotext.gate.dictlemm;
+
+/**
+ * The parts of speech there are word lists for, with the Penn Treebank tags which map to them.
+ * See https://www.ling.upenn.edu/courses/Fall_2003/ling001/penn_treebank_pos.html
+ * <p>
+ * MISSING: AUX, CCONJ, INTJ, NUM, PROPN, PUNCT, SCONJ, SYM, X
+ */
+public enum PartOfSpeech {
+	ADJ("JJ", true),
+	ADP("IN", false),
+	ADV("RB", true),
+	DET("DT", false),
+	NOUN("NN", true),
+	PART("RP", false),
+	PRON("PR", false),
+	VERB("VB", true);
+
+	private final String tagPrefix;
+	private final boolean openClass;
+
+	PartOfSpeech(String tagPrefix, boolean openClass) {
+		this.tagPrefix = tagPrefix;
+		this.openClass = openClass;
+	}
+
+	/**
+	 * Whether new words of this part of speech turn up. The lists of closed classes like
+	 * determiners are complete, so unknown words are not guessed from them.
+	 */
+	public boolean isOpenClass() {
+		return openClass;
+	}
+
+	/** The name of the word list file in the dictionary directory of a language. */
+	public String getDictionaryFileName() {
+		return name() + "-Dict.txt.gz";
+	}
+
+	/**
+	 * @return the part of speech of a Penn Treebank tag or null if there is no word list for it
+	 */
+	public static PartOfSpeech forTag(String tag) {
+		for (PartOfSpeech pos : values()) {
+			if (tag.startsWith(pos.tagPrefix)) return pos;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Lemmatizer
+ * (see https://github.com/GateNLP/gateplugin-Lemmatizer)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ontotext.gate.dictlemm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Guesses lemmata of out-of-vocabulary words from suffix rewrite rules learned from a dictionary.
+ * <p>
+ * Every form/lemma pair of the dictionary is turned into a rule "strip k characters from the end
+ * of the form, then append s". The reversed forms are stored in a trie whose nodes remember the
+ * most frequent rule among all forms ending in that suffix, together with the share of forms
+ * which use it. A guess walks the trie from the last character of the word backwards and
+ * applies the rule of the deepest node that is supported by enough forms, so it costs
+ * O(word length).
+ * <p>
+ * Instances are immutable once built and can be shared between threads.
+ */
+public class SuffixLemmaGuesser {
+	/** Suffixes longer than this are not distinguished any more. */
+	public static final int MAX_SUFFIX_LENGTH = 10;
+
+	/** Rules are only learned from suffixes at least this long, a final letter says too little. */
+	public static final int MIN_SUFFIX_LENGTH = 3;
+
+	/** A trie node must be supported by at least this many forms to be used for guessing. */
+	public static final int MIN_SUPPORT = 3;
+
+	private static final int[] NO_INTS = new int[0];
+
+	// the trie, children of a node are stored contiguously and sorted by their label
+	private final char[] labels;
+	private final int[] firstChild;
+	private final int[] childCount;
+	private final int[] rules;
+	private final float[] confidences;
+
+	// the rule table
+	private final int[] ruleStrip;
+	private final String[] ruleAppend;
+
+	private SuffixLemmaGuesser(char[] labels, int[] firstChild, int[] childCount, int[] rules, float[] confidences, int[] ruleStrip, String[] ruleAppend) {
+		this.labels = labels;
+		this.firstChild = firstChild;
+		this.childCount = childCount;
+		this.rules = rules;
+		this.confidences = confidences;
+		this.ruleStrip = ruleStrip;
+		this.ruleAppend = ruleAppend;
+	}
+
+	/** Like {@link #build(Map)}, but returns null for an empty dictionary. */
+	public static SuffixLemmaGuesser buildUnlessEmpty(Map<String, String> dictionary) {
+		if (dictionary.isEmpty()) return null;
+		return build(dictionary);
+	}
+
+	/**
+	 * Builds a guesser from the form to lemma mapping of a dictionary as returned by
+	 * {@link DictLemmatizerPR#loadDictionary(java.io.File)}.
+	 */
+	public static SuffixLemmaGuesser build(Map<String, String> dictionary) {
+		Map<String, Integer> ruleIds = new HashMap<>();
+		List<Integer> strips = new ArrayList<>();
+		List<String> appends = new ArrayList<>();
+
+		String[] reversedForms = new String[dictionary.size()];
+		int[] formRules = new int[dictionary.size()];
+		int n = 0;
+		for (Map.Entry<String, String> entry : dictionary.entrySet()) {
+			String form = entry.getKey();
+			String lemma = entry.getValue();
+			if (form.isEmpty() || lemma.isEmpty()) continue;
+
+			int prefix = 0;
+			int max = Math.min(form.length(), lemma.length());
+			while (prefix < max && form.charAt(prefix) == Character.toLowerCase(lemma.charAt(prefix))) prefix += 1;
+			int strip = form.length() - prefix;
+			// rules which rewrite (almost) the whole word say nothing about suffixes
+			if (strip >= form.length() || strip > MAX_SUFFIX_LENGTH) continue;
+
+			String append = lemma.substring(prefix);
+			String key = strip + "|" + append;
+			Integer ruleId = ruleIds.get(key);
+			if (ruleId == null) {
+				ruleId = strips.size();
+				ruleIds.put(key, ruleId);
+				strips.add(strip);
+				appends.add(append);
+			}
+
+			int suffixLength = Math.min(form.length(), MAX_SUFFIX_LENGTH);
+			reversedForms[n] = new StringBuilder(form.substring(form.length() - suffixLength)).reverse().toString();
+			formRules[n] = ruleId;
+			n += 1;
+		}
+
+		// sort the reversed forms so that all forms sharing a suffix form a contiguous range
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) order[i] = i;
+		Arrays.sort(order, (a, b) -> reversedForms[a].compareTo(reversedForms[b]));
+		String[] sortedForms = new String[n];
+		int[] sortedRules = new int[n];
+		for (int i = 0; i < n; i++) {
+			sortedForms[i] = reversedForms[order[i]];
+			sortedRules[i] = formRules[order[i]];
+		}
+
+		int[] ruleStrip = new int[strips.size()];
+		for (int i = 0; i < ruleStrip.length; i++) ruleStrip[i] = strips.get(i);
+
+		Builder builder = new Builder(sortedForms, sortedRules, ruleStrip);
+		builder.addNode('\0', 0, n, 0);
+		builder.expand(0, 0, n, 0);
+		return new SuffixLemmaGuesser(
+				Arrays.copyOf(builder.labels, builder.size),
+				Arrays.copyOf(builder.firstChild, builder.size),
+				Arrays.copyOf(builder.childCount, builder.size),
+				Arrays.copyOf(builder.rules, builder.size),
+				Arrays.copyOf(builder.confidences, builder.size),
+				ruleStrip,
+				appends.toArray(new String[appends.size()]));
+	}
+
+	/**
+	 * Guesses the lemma of a word.
+	 * The rewrite rule is applied to the word as given, so its case is preserved.
+	 *
+	 * @param word          the word to lemmatize
+	 * @param minConfidence the minimum share of dictionary forms with the same suffix that must agree on the rule
+	 * @return the guessed lemma or null if there is no rule with enough confidence
+	 */
+	public String guess(String word, double minConfidence) {
+		int length = word.length();
+		int node = 0;
+		int best = -1;
+		for (int depth = 1; depth <= length && depth <= MAX_SUFFIX_LENGTH; depth++) {
+			node = child(node, Character.toLowerCase(word.charAt(length - depth)));
+			if (node < 0) break;
+			int rule = rules[node];
+			if (rule >= 0 && depth >= MIN_SUFFIX_LENGTH && ruleStrip[rule] < length) best = node;
+		}
+
+		if (best < 0 || confidences[best] < minConfidence) return null;
+		int rule = rules[best];
+		return word.substring(0, length - ruleStrip[rule]) + ruleAppend[rule];
+	}
+
+	/** The number of nodes in the suffix trie. */
+	public int size() {
+		return labels.length;
+	}
+
+	/** The number of distinct rewrite rules. */
+	public int ruleCount() {
+		return ruleStrip.length;
+	}
+
+	/** The estimated number of bytes retained by the trie and the rule table. */
+	public long estimatedBytes() {
+		long bytes = 48;
+		int n = labels.length;
+		bytes += LanguageResources.align(16 + 2L * n) + 4 * LanguageResources.align(16 + 4L * n);
+		bytes += 2 * LanguageResources.align(16 + 4L * ruleStrip.length);
+		for (String append : ruleAppend) bytes += LanguageResources.estimateBytes(append);
+		return bytes;
+	}
+
+	private int child(int node, char c) {
+		int low = firstChild[node];
+		int high = low + childCount[node] - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			char label = labels[mid];
+			if (label < c) low = mid + 1;
+			else if (label > c) high = mid - 1;
+			else return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * Builds the trie from the sorted reversed forms. Children are allocated as one block before
+	 * descending into them, which keeps the children of every node contiguous.
+	 */
+	private static class Builder {
+		final String[] forms;
+		final int[] formRules;
+		final int[] ruleStrip;
+		final int[] ruleCounts;
+		final List<Integer> touchedRules = new ArrayList<>();
+
+		char[] labels = new char[1024];
+		int[] firstChild = new int[1024];
+		int[] childCount = new int[1024];
+		int[] rules = new int[1024];
+		float[] confidences = new float[1024];
+		int size = 0;
+
+		Builder(String[] forms, int[] formRules, int[] ruleStrip) {
+			this.forms = forms;
+			this.formRules = formRules;
+			this.ruleStrip = ruleStrip;
+			this.ruleCounts = new int[ruleStrip.length];
+		}
+
+		int addNode(char label, int from, int to, int depth) {
+			if (size == labels.length) {
+				int capacity = size * 2;
+				labels = Arrays.copyOf(labels, capacity);
+				firstChild = Arrays.copyOf(firstChild, capacity);
+				childCount = Arrays.copyOf(childCount, capacity);
+				rules = Arrays.copyOf(rules, capacity);
+				confidences = Arrays.copyOf(confidences, capacity);
+			}
+
+			// only rules which strip no more than the suffix seen so far are explained by it
+			int total = 0;
+			int bestRule = -1;
+			for (int i = from; i < to; i++) {
+				int rule = formRules[i];
+				if (depth > 0 && ruleStrip[rule] > depth) continue;
+				if (ruleCounts[rule] == 0) touchedRules.add(rule);
+				ruleCounts[rule] += 1;
+				total += 1;
+				if (bestRule < 0 || ruleCounts[rule] > ruleCounts[bestRule]) bestRule = rule;
+			}
+
+			labels[size] = label;
+			firstChild[size] = 0;
+			childCount[size] = 0;
+			if (total >= MIN_SUPPORT) {
+				rules[size] = bestRule;
+				confidences[size] = (float) ruleCounts[bestRule] / total;
+			} else {
+				rules[size] = -1;
+				confidences[size] = 0f;
+			}
+			for (int rule : touchedRules) ruleCounts[rule] = 0;
+			touchedRules.clear();
+			return size++;
+		}
+
+		void expand(int node, int from, int to, int depth) {
+			if (depth >= MAX_SUFFIX_LENGTH) return;
+
+			// forms which end at this depth sort first and have no child
+			int start = from;
+			while (start < to && forms[start].length() <= depth) start += 1;
+
+			int[] childFrom = NO_INTS;
+			int[] childTo = NO_INTS;
+			int nrChildren = 0;
+			for (int i = start; i < to; ) {
+				char c = forms[i].charAt(depth);
+				int j = i + 1;
+				while (j < to && forms[j].charAt(depth) == c) j += 1;
+				if (j - i >= MIN_SUPPORT) {
+					if (nrChildren == childFrom.length) {
+						childFrom = Arrays.copyOf(childFrom, Math.max(4, nrChildren * 2));
+						childTo = Arrays.copyOf(childTo, childFrom.length);
+					}
+					childFrom[nrChildren] = i;
+					childTo[nrChildren] = j;
+					nrChildren += 1;
+				}
+				i = j;
+			}
+			if (nrChildren == 0) return;
+
+			int first = size;
+			for (int k = 0; k < nrChildren; k++) addNode(forms[childFrom[k]].charAt(depth), childFrom[k], childTo[k], depth + 1);
+			firstChild[node] = first;
+			childCount[node] = nrChildren;
+			for (int k = 0; k < nrChildren; k++) expand(first + k, childFrom[k], childTo[k], depth + 1);
+		}
+	}
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Lemmatizer
+ * (see https://github.com/GateNLP/gateplugin-Lemmatizer)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ontotext.gate.dictlemm;
+
+import gate.Annotation;
+import gate.Document;
+import gate.FeatureMap;
+import gate.Utils;
+import org.apache.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Finds the lemma of one token at a time: overlay and bundled word lists first, then the suffix
+ * guesser, then HFST.
+ * <p>
+ * The language resources are shared, but an instance keeps the HFST time budget of the current
+ * document, the outcome of the last token and the counters, so it must only be used by one thread
+ * at a time. Create a copy with {@link #TokenLemmatizer(TokenLemmatizer)} for each worker.
+ */
+public class TokenLemmatizer {
+	private static final Logger LOGGER = Logger.getLogger(TokenLemmatizer.class);
+
+	public static final String STATUS_FEATURE = "lemmatizer.status";
+	public static final String SUMMARY_FEATURE = "lemmatizer.summary";
+
+	private final LanguageResources resources;
+
+	// settings
+	String posFeature = "category";
+	String textFeature = "string";  // if null the document text is used
+	String lemmaFeature = "lemma";
+	boolean useGuessers = true;
+	double guesserMinConfidence = 0.9;
+	int hfstMaxTokenLength = 50;
+	long hfstTokenTimeBudgetNanos = 100 * 1000000L;
+	long hfstDocumentTimeBudgetNanos = 5000 * 1000000L;
+	double hfstMaxFailureRate = 0.5;
+	HfstResultCache hfstResultCache = null;  // if null HFST results are not cached
+	DictionaryOverlay overlay = null;  // if null only the bundled lists are used
+
+	// the time HFST has spent on the current document
+	long documentHfstNanos = 0;
+
+	// instrumentation of the current document, the list lookups are only timed if somebody is interested
+	Object documentEvent = null;
+	boolean timePhases = false;
+	long documentListNanos = 0;
+	int documentTokens = 0;
+	int documentHfstCalls = 0;
+
+	DiagnosticsLevel diagnostics = DiagnosticsLevel.SUMMARY;
+
+	// how we did the lemmatization for the last token
+	LemmaOutcome outcome = null;
+	PartOfSpeech lastPos = null;
+	String lastTag = null;
+
+	// the number of tokens of the current document per outcome
+	final int[] documentOutcomes = new int[LemmaOutcome.values().length];
+
+	// the forms which were not found in the lists or by the guessers, until they are added to the sketch
+	final UnresolvedFormSketch.Buffer unresolved = new UnresolvedFormSketch.Buffer();
+
+	int nrTokens = 0;
+	int nrErrors = 0;
+	int nrHfst = 0;
+	int nrHfstSkipped = 0;
+	int nrHfstSlow = 0;
+	int nrHfstCached = 0;
+	int nrGuessed = 0;
+	int nrListLookups = 0;
+	int nrListLookupsNotFound = 0;
+	int nrUnhandledPos = 0;
+
+	public TokenLemmatizer(LanguageResources resources) {
+		this.resources = resources;
+	}
+
+	/**
+	 * Creates a lemmatizer with the same resources and settings as another one, but with its own
+	 * budget, outcomes and counters.
+	 */
+	public TokenLemmatizer(TokenLemmatizer other) {
+		this.resources = other.resources;
+		this.posFeature = other.posFeature;
+		this.textFeature = other.textFeature;
+		this.lemmaFeature = other.lemmaFeature;
+		this.useGuessers = other.useGuessers;
+		this.guesserMinConfidence = other.guesserMinConfidence;
+		this.hfstMaxTokenLength = other.hfstMaxTokenLength;
+		this.hfstTokenTimeBudgetNanos = other.hfstTokenTimeBudgetNanos;
+		this.hfstDocumentTimeBudgetNanos = other.hfstDocumentTimeBudgetNanos;
+		this.hfstMaxFailureRate = other.hfstMaxFailureRate;
+		this.hfstResultCache = other.hfstResultCache;
+		this.overlay = other.overlay;
+		this.diagnostics = other.diagnostics;
+	}
+
+	public LanguageResources getResources() {
+		return resources;
+	}
+
+	/** The feature with the POS tag. */
+	public void setPosFeature(String posFeature) {
+		this.posFeature = posFeature;
+	}
+
+	/** The feature with the word string, if null the document text covered by the token is used. */
+	public void setTextFeature(String textFeature) {
+		this.textFeature = textFeature;
+	}
+
+	/** The feature to write the lemma to. */
+	public void setLemmaFeature(String lemmaFeature) {
+		this.lemmaFeature = lemmaFeature;
+	}
+
+	/**
+	 * The minimum confidence of a guess by the suffix guessers, values above 1.0 disable guessing.
+	 * The guessers are built when guessing is enabled.
+	 */
+	public void setGuesserMinConfidence(double guesserMinConfidence) {
+		this.guesserMinConfidence = guesserMinConfidence;
+		this.useGuessers = guesserMinConfidence <= 1.0;
+		if (useGuessers) resources.buildGuessers();
+	}
+
+	public void setHfstMaxTokenLength(int hfstMaxTokenLength) {
+		this.hfstMaxTokenLength = hfstMaxTokenLength;
+	}
+
+	public void setHfstTokenTimeBudget(int millis) {
+		this.hfstTokenTimeBudgetNanos = millis * 1000000L;
+	}
+
+	public void setHfstDocumentTimeBudget(int millis) {
+		this.hfstDocumentTimeBudgetNanos = millis * 1000000L;
+	}
+
+	public void setHfstMaxFailureRate(double hfstMaxFailureRate) {
+		this.hfstMaxFailureRate = hfstMaxFailureRate;
+	}
+
+	public void setHfstResultCache(HfstResultCache hfstResultCache) {
+		this.hfstResultCache = hfstResultCache;
+	}
+
+	public HfstResultCache getHfstResultCache() {
+		return hfstResultCache;
+	}
+
+	/** The overlay lists which are looked up before the bundled ones, null for none. */
+	public void setOverlay(DictionaryOverlay overlay) {
+		this.overlay = overlay;
+	}
+
+	/** What is reported about how the lemmata were found, SUMMARY by default. */
+	public void setDiagnostics(DiagnosticsLevel diagnostics) {
+		this.diagnostics = diagnostics;
+	}
+
+	/** Resets the HFST time budget and the outcome counts, must be called before the tokens of each document. */
+	public void startDocument() {
+		documentHfstNanos = 0;
+		Arrays.fill(documentOutcomes, 0);
+		documentEvent = LemmatizerEvents.beginDocument();
+		timePhases = LemmatizerEvents.isTimed(documentEvent);
+		documentListNanos = 0;
+		documentTokens = 0;
+		documentHfstCalls = 0;
+	}
+
+	/**
+	 * Stores the number of tokens per outcome since {@link #startDocument()} in the
+	 * "lemmatizer.summary" document feature if the diagnostics level is SUMMARY, adds the
+	 * unresolved forms to the sketch and records the flight recorder event of the document.
+	 */
+	public void finishDocument(Document document) {
+		LemmatizerEvents.endDocument(documentEvent, document.getName(), resources.getLanguageCode(), documentTokens, documentListNanos, documentHfstCalls, documentHfstNanos);
+		documentEvent = null;
+		flushUnresolved();
+		if (diagnostics != DiagnosticsLevel.SUMMARY) return;
+		document.getFeatures().put(SUMMARY_FEATURE, getDocumentSummary());
+	}
+
+	/** @return the time spent on the word lists and guessers since {@link #startDocument()}, 0 unless benchmarking or the flight recorder event is enabled */
+	public long getDocumentListNanos() {
+		return documentListNanos;
+	}
+
+	/** @return the time spent in the transducer since {@link #startDocument()} */
+	public long getDocumentHfstNanos() {
+		return documentHfstNanos;
+	}
+
+	/** Adds the unresolved forms seen since the last call to the {@link UnresolvedFormSketch}. */
+	public void flushUnresolved() {
+		unresolved.flush();
+	}
+
+	/** @return the number of tokens per outcome since {@link #startDocument()}, without the outcomes which did not occur */
+	public Map<String, Integer> getDocumentSummary() {
+		Map<String, Integer> summary = new LinkedHashMap<>();
+		for (LemmaOutcome outcome : LemmaOutcome.values()) {
+			int count = documentOutcomes[outcome.ordinal()];
+			if (count > 0) summary.put(outcome.name(), count);
+		}
+		return summary;
+	}
+
+	/** How the lemma of the last token was found. */
+	public LemmaOutcome getOutcome() {
+		return outcome;
+	}
+
+	/** An indication how the lemma of the last token was found, like "NOUN-NOTFOUND-HFST_HAVE". */
+	public String getStatus() {
+		return outcome == null ? "" : outcome.status(lastPos, lastTag);
+	}
+
+	/**
+	 * Lemmatizes a token annotation which has a POS tag and writes the lemma feature, and the status
+	 * feature if the diagnostics level is PER_TOKEN. Tokens without a POS tag are left alone.
+	 */
+	public void lemmatize(Document document, Annotation token) {
+		FeatureMap fm = token.getFeatures();
+		String pos = (String) fm.get(posFeature);
+		if (pos == null || pos.trim().isEmpty()) return;
+
+		String kind = (String) fm.get("kind");
+		String lemma;
+		if (textFeature == null) lemma = lemmatizeContent(document, token, kind, pos);
+		else lemma = lemmatize((String) fm.get(textFeature), kind, pos);
+		fm.put(lemmaFeature, lemma);
+		if (diagnostics == DiagnosticsLevel.PER_TOKEN) fm.put(STATUS_FEATURE, getStatus());
+	}
+
+	/**
+	 * Finds the lemma of a token. How it was found is available from {@link #getOutcome()} and
+	 * {@link #getStatus()} afterwards.
+	 *
+	 * @param tokenString the token text
+	 * @param kind        the kind of the token, like "word", "number" or "punct"
+	 * @param pos         the Penn Treebank POS tag
+	 * @return the lemma, which is the token text itself if nothing better is found
+	 */
+	public String lemmatize(String tokenString, String kind, String pos) {
+		startToken(pos);
+		kind = kind.toLowerCase();
+		if (kind.equals("number")) return found(tokenString, LemmaOutcome.NUMBER);
+		if (kind.equals("punct")) return found(tokenString, LemmaOutcome.PUNCT);
+
+		long listStart = timePhases ? System.nanoTime() : 0;
+		String lemma = null;
+		String form = tokenString.toLowerCase();
+		PartOfSpeech partOfSpeech = PartOfSpeech.forTag(pos);
+		if (partOfSpeech != null) {
+			lastPos = partOfSpeech;
+			if (overlay != null) lemma = overlay.get(partOfSpeech, form);
+			if (lemma == null) lemma = resources.getDictionary(partOfSpeech).get(form);
+			nrListLookups += 1;
+			if (lemma == null) nrListLookupsNotFound += 1;
+		} else {
+			nrUnhandledPos += 1;
+		}
+		if (lemma != null) {
+			listPhaseDone(listStart);
+			return found(lemma, LemmaOutcome.FOUND);
+		}
+		return resolve(tokenString, form, pos, partOfSpeech, listStart);
+	}
+
+	/**
+	 * Like {@link #lemmatize(String, String, String)} for the text of a token in the document content.
+	 * Words are looked up in the lists within the content itself, so the token string is only
+	 * created if they are not found, or for numbers, punctuation and text which needs cleaning.
+	 */
+	private String lemmatizeContent(Document document, Annotation token, String kind, String pos) {
+		String text = document.getContent().toString();
+		int start = token.getStartNode().getOffset().intValue();
+		int end = token.getEndNode().getOffset().intValue();
+		PartOfSpeech partOfSpeech = PartOfSpeech.forTag(pos);
+		if (kind.equalsIgnoreCase("number") || kind.equalsIgnoreCase("punct") || partOfSpeech == null || !isPlain(text, start, end)) {
+			return lemmatize(Utils.cleanStringFor(document, token), kind, pos);
+		}
+
+		startToken(pos);
+		lastPos = partOfSpeech;
+		long listStart = timePhases ? System.nanoTime() : 0;
+		String lemma = null;
+		if (overlay != null) lemma = overlay.getLowerCase(partOfSpeech, text, start, end);
+		if (lemma == null) lemma = resources.getDictionary(partOfSpeech).getLowerCase(text, start, end);
+		nrListLookups += 1;
+		if (lemma != null) {
+			listPhaseDone(listStart);
+			return found(lemma, LemmaOutcome.FOUND);
+		}
+		nrListLookupsNotFound += 1;
+
+		String tokenString = text.substring(start, end);
+		return resolve(tokenString, tokenString.toLowerCase(), pos, partOfSpeech, listStart);
+	}
+
+	/**
+	 * Whether a range of the content is the token string and can be lowercased char by char: it has
+	 * no whitespace or control chars, which Utils.cleanStringFor() would change, no surrogates and
+	 * no capital dotted I or sigma, which String.toLowerCase() maps depending on the context.
+	 */
+	private static boolean isPlain(String text, int start, int end) {
+		if (start >= end) return false;
+		for (int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			if (c <= ' ' || Character.isSurrogate(c) || c == '\u0130' || c == '\u03a3') return false;
+		}
+		return true;
+	}
+
+	private void startToken(String pos) {
+		nrTokens += 1;
+		documentTokens += 1;
+		lastPos = null;
+		lastTag = pos;
+	}
+
+	/** Lemmatizes a word which is not in the lists by the guesser or HFST. */
+	private String resolve(String tokenString, String form, String pos, PartOfSpeech partOfSpeech, long listStart) {
+		String lemma;
+
+		// words not in the lists are lemmatized by their suffix if the rule is reliable enough,
+		// only the remaining ones are left for HFST
+		SuffixLemmaGuesser guesser = useGuessers && partOfSpeech != null ? resources.getGuesser(partOfSpeech) : null;
+		if (guesser != null) {
+			lemma = guesser.guess(tokenString, guesserMinConfidence);
+			if (lemma != null) {
+				nrGuessed += 1;
+				listPhaseDone(listStart);
+				return found(lemma, LemmaOutcome.GUESSED);
+			}
+		}
+		listPhaseDone(listStart);
+
+		unresolved.add(resources.getLanguageCode(), pos, form);
+
+		// NOTE: without a transducer the token itself is the lemma
+		HfstLemmatizer hfstLemmatizer = resources.getHfstLemmatizer();
+		if (hfstLemmatizer == null) return found(tokenString, LemmaOutcome.NOHFST);
+
+		HfstCircuitBreaker hfstCircuitBreaker = resources.getCircuitBreaker();
+		if (!isLexical(tokenString, hfstMaxTokenLength)) {
+			nrHfstSkipped += 1;
+			return found(tokenString, LemmaOutcome.HFST_SKIPPED);
+		}
+		if (hfstResultCache != null && (lemma = hfstResultCache.get(tokenString, pos)) != null) {
+			nrHfstCached += 1;
+			if (!lemma.isEmpty()) return found(lemma, LemmaOutcome.HFST_CACHED_HAVE);
+			return found(tokenString, LemmaOutcome.HFST_CACHED_EMPTY);
+		}
+		if (documentHfstNanos >= hfstDocumentTimeBudgetNanos) {
+			nrHfstSkipped += 1;
+			return found(tokenString, LemmaOutcome.HFST_BUDGET);
+		}
+		if (!hfstCircuitBreaker.allowRequest()) {
+			nrHfstSkipped += 1;
+			return found(tokenString, LemmaOutcome.HFST_OFF);
+		}
+
+		// NOTE: the transducer cannot be interrupted, so a token which exceeds its
+		// budget is only counted as a failure after the analysis has finished
+		long start = System.nanoTime();
+		LemmaOutcome outcome;
+		boolean failed = false;
+		try {
+			nrHfst += 1;
+			documentHfstCalls += 1;
+			lemma = hfstLemmatizer.getLemma(tokenString, pos);
+			if (hfstResultCache != null) hfstResultCache.put(tokenString, pos, lemma);
+			if (lemma != null && !lemma.isEmpty()) {
+				outcome = LemmaOutcome.HFST_HAVE;
+			} else {
+				lemma = tokenString;
+				outcome = LemmaOutcome.HFST_EMPTY;
+			}
+		} catch (Exception ex) {
+			LOGGER.error("Exception for " + tokenString + ": " + ex.getClass() + ", " + ex.getMessage(), ex);
+			lemma = tokenString;
+			outcome = LemmaOutcome.HFST_ERROR;
+			nrErrors += 1;
+			failed = true;
+		}
+
+		long elapsed = System.nanoTime() - start;
+		documentHfstNanos += elapsed;
+		if (elapsed > hfstTokenTimeBudgetNanos) {
+			if (outcome == LemmaOutcome.HFST_HAVE) outcome = LemmaOutcome.HFST_HAVE_SLOW;
+			else if (outcome == LemmaOutcome.HFST_EMPTY) outcome = LemmaOutcome.HFST_EMPTY_SLOW;
+			else outcome = LemmaOutcome.HFST_ERROR_SLOW;
+			nrHfstSlow += 1;
+			failed = true;
+		}
+		hfstCircuitBreaker.record(failed, hfstMaxFailureRate);
+		return found(lemma, outcome);
+	}
+
+	/**
+	 * Checks if a token could be a word at all before it is passed to HFST. Long tokens and tokens
+	 * with characters other than letters, hyphens, apostrophes and dots (URLs, numbers, garbage)
+	 * can make the transducer explore a huge number of paths without finding a lemma.
+	 */
+	public static boolean isLexical(String token, int maxLength) {
+		int length = token.length();
+		if (length == 0 || length > maxLength) return false;
+
+		boolean haveLetter = false;
+		for (int i = 0; i < length; i++) {
+			char c = token.charAt(i);
+			if (Character.isLetter(c)) haveLetter = true;
+			else if (c != '-' && c != '\'' && c != '\u2019' && c != '.') return false;
+		}
+		return haveLetter;
+	}
+
+	private void listPhaseDone(long listStart) {
+		if (timePhases) documentListNanos += System.nanoTime() - listStart;
+	}
+
+	private String found(String lemma, LemmaOutcome outcome) {
+		this.outcome = outcome;
+		documentOutcomes[outcome.ordinal()] += 1;
+		return lemma;
+	}
+
+	/** Logs the counters at debug level. */
+	public void logStatistics() {
+		LOGGER.debug("Tokens processed:                   " + nrTokens);
+		LOGGER.debug("Tokens guessed from their suffix:   " + nrGuessed);
+		LOGGER.debug("Tokens for which HFST was invoked:  " + nrHfst);
+		LOGGER.debug("Tokens for which HFST had errors:   " + nrErrors);
+		LOGGER.debug("Tokens for which HFST was too slow: " + nrHfstSlow);
+		LOGGER.debug("Tokens for which HFST was skipped:  " + nrHfstSkipped);
+		LOGGER.debug("Tokens found in the HFST cache:     " + nrHfstCached);
+		LOGGER.debug("Tokens for which Lists looked up:   " + nrListLookups);
+		LOGGER.debug("Tokens for which not found in List: " + nrListLookupsNotFound);
+		LOGGER.debug("Tokens with a POS without List:     " + nrUnhandledPos);
+	}
+}
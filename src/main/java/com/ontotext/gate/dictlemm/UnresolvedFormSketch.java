@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Lemmatizer
+ * (see https://github.com/GateNLP/gateplugin-Lemmatizer)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ontotext.gate.dictlemm;
+
+import gate.util.GateRuntimeException;
+import org.apache.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The most frequent (form, POS tag, language) triples which were found neither in the lists nor
+ * by the guessers, counted over all lemmatizers of the JVM. These are the candidates for adding to
+ * the word lists or pre-seeding the HFST cache.
+ * <p>
+ * The counts are kept with the Space-Saving algorithm in a fixed number of counters: a new key
+ * replaces the one with the lowest count and inherits that count as its error, so the counts are
+ * upper bounds which exceed the true count by at most the error, and every key occurring more
+ * often than total / {@link #CAPACITY} times is guaranteed to be kept.
+ * <p>
+ * Lemmatizers do not update the sketch per token but collect counts in a {@link Buffer} of their
+ * own which they add to the sketch after each document, so the lock is taken rarely.
+ * <p>
+ * While language resources are loaded, the sketch is registered as the MBean
+ * com.ontotext.gate.dictlemm:type=UnresolvedForms. It is unregistered when the last ones are
+ * released, so that the MBean server does not keep the class loader of an unloaded plugin.
+ */
+public class UnresolvedFormSketch implements UnresolvedFormSketchMBean {
+	private static final Logger LOGGER = Logger.getLogger(UnresolvedFormSketch.class);
+
+	/** The number of counters. */
+	public static final int CAPACITY = 5000;
+
+	/** The name of the MBean. */
+	public static final String MBEAN_NAME = "com.ontotext.gate.dictlemm:type=UnresolvedForms";
+
+	private static final UnresolvedFormSketch INSTANCE = new UnresolvedFormSketch(CAPACITY);
+
+	/** A counted key with its count and maximum overestimation. */
+	public static class Entry {
+		public final String language;
+		public final String pos;
+		public final String form;
+		public final long count;
+		public final long error;
+
+		Entry(String key, long count, long error) {
+			String[] parts = key.split("\t", 3);
+			this.language = parts[0];
+			this.pos = parts[1];
+			this.form = parts[2];
+			this.count = count;
+			this.error = error;
+		}
+
+		@Override
+		public String toString() {
+			return count + "\t" + error + "\t" + language + "\t" + pos + "\t" + form;
+		}
+	}
+
+	/**
+	 * Collects counts for one lemmatizer, must only be used by one thread at a time.
+	 */
+	public static class Buffer {
+		/** The buffer is added to the sketch when it has this many keys. */
+		public static final int MAX_KEYS = 1024;
+
+		private final Map<String, long[]> counts = new HashMap<>();
+
+		public void add(String language, String pos, String form) {
+			long[] count = counts.computeIfAbsent(language + '\t' + pos + '\t' + form, k -> new long[1]);
+			count[0] += 1;
+			if (counts.size() >= MAX_KEYS) flush();
+		}
+
+		/** Adds the collected counts to the sketch and clears them. */
+		public void flush() {
+			if (counts.isEmpty()) return;
+			INSTANCE.addAll(counts);
+			counts.clear();
+		}
+	}
+
+	// the counters are a min-heap on the counts, with the heap position of each key
+	private final String[] keys;
+	private final long[] counts;
+	private final long[] errors;
+	private final Map<String, Integer> positions = new HashMap<>();
+	private int size = 0;
+	private long total = 0;
+
+	// the number of lemmatizer runs going on per file they dump the sketch to
+	private final Map<File, Integer> runningDumps = new HashMap<>();
+
+	UnresolvedFormSketch(int capacity) {
+		keys = new String[capacity];
+		counts = new long[capacity];
+		errors = new long[capacity];
+	}
+
+	public static UnresolvedFormSketch getInstance() {
+		return INSTANCE;
+	}
+
+	/** Registers the MBean, replacing one left behind by another class loader of the plugin. */
+	static void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(MBEAN_NAME);
+			if (server.isRegistered(name)) server.unregisterMBean(name);
+			server.registerMBean(INSTANCE, name);
+		} catch (JMException | RuntimeException ex) {
+			LOGGER.debug("could not register the unresolved forms MBean", ex);
+		}
+	}
+
+	/** Unregisters the MBean if it is the one of this class loader. */
+	static void unregisterMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(MBEAN_NAME);
+			if (server.isRegistered(name) && server.getClassLoaderFor(name) == UnresolvedFormSketch.class.getClassLoader()) server.unregisterMBean(name);
+		} catch (JMException | RuntimeException ex) {
+			LOGGER.debug("could not unregister the unresolved forms MBean", ex);
+		}
+	}
+
+	synchronized void addAll(Map<String, long[]> increments) {
+		for (Map.Entry<String, long[]> increment : increments.entrySet()) add(increment.getKey(), increment.getValue()[0]);
+	}
+
+	synchronized void add(String key, long increment) {
+		total += increment;
+		Integer position = positions.get(key);
+		if (position == null && size < keys.length) {
+			position = size++;
+			keys[position] = key;
+			counts[position] = increment;
+			errors[position] = 0;
+			positions.put(key, position);
+			siftUp(position);
+			return;
+		}
+
+		if (position == null) {
+			// replace the key with the lowest count, which is at the root
+			position = 0;
+			positions.remove(keys[0]);
+			keys[0] = key;
+			errors[0] = counts[0];
+			positions.put(key, 0);
+		}
+		counts[position] += increment;
+		siftDown(position);
+	}
+
+	/** @return the k keys with the highest counts, highest first */
+	public synchronized List<Entry> getTop(int k) {
+		Integer[] order = new Integer[size];
+		for (int i = 0; i < size; i++) order[i] = i;
+		Arrays.sort(order, (a, b) -> Long.compare(counts[b], counts[a]));
+
+		List<Entry> top = new ArrayList<>();
+		for (int i = 0; i < Math.min(k, size); i++) top.add(new Entry(keys[order[i]], counts[order[i]], errors[order[i]]));
+		return top;
+	}
+
+	@Override
+	public String[] getTopUnresolved(int k) {
+		List<Entry> top = getTop(k);
+		String[] lines = new String[top.size()];
+		for (int i = 0; i < lines.length; i++) lines[i] = top.get(i).toString();
+		return lines;
+	}
+
+	/** Registers a lemmatizer run which dumps the sketch to a file when it is over. */
+	public synchronized void startRun(File file) {
+		runningDumps.merge(file.getAbsoluteFile(), 1, Integer::sum);
+	}
+
+	/**
+	 * Ends a run registered with {@link #startRun(File)}.
+	 *
+	 * @return whether no other run which dumps to the same file is still going on, then the
+	 *         caller dumps the sketch, which has the counts of all of them
+	 */
+	public synchronized boolean finishRun(File file) {
+		Integer running = runningDumps.remove(file.getAbsoluteFile());
+		if (running == null || running <= 1) return true;
+		runningDumps.put(file.getAbsoluteFile(), running - 1);
+		return false;
+	}
+
+	/**
+	 * Writes the k most frequent unresolved forms to a tab separated file with the columns count,
+	 * error, language, POS and form, replacing the file atomically.
+	 */
+	public void dump(File file, int k) {
+		List<Entry> top = getTop(k);
+		try {
+			File dir = file.getAbsoluteFile().getParentFile();
+			if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create directory " + dir);
+			File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+			try (Writer out = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+				out.write("count\terror\tlanguage\tpos\tform\n");
+				for (Entry entry : top) out.write(entry + "\n");
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ex) {
+			throw new GateRuntimeException("Could not write the unresolved forms to " + file, ex);
+		}
+	}
+
+	@Override
+	public synchronized long getTotal() {
+		return total;
+	}
+
+	@Override
+	public synchronized void reset() {
+		Arrays.fill(keys, null);
+		positions.clear();
+		size = 0;
+		total = 0;
+	}
+
+	private void siftUp(int position) {
+		while (position > 0) {
+			int parent = (position - 1) / 2;
+			if (counts[parent] <= counts[position]) return;
+			swap(position, parent);
+			position = parent;
+		}
+	}
+
+	private void siftDown(int position) {
+		while (true) {
+			int smallest = position;
+			int left = 2 * position + 1;
+			int right = left + 1;
+			if (left < size && counts[left] < counts[smallest]) smallest = left;
+			if (right < size && counts[right] < counts[smallest]) smallest = right;
+			if (smallest == position) return;
+			swap(position, smallest);
+			position = smallest;
+		}
+	}
+
+	private void swap(int i, int j) {
+		String key = keys[i];
+		long count = counts[i];
+		long error = errors[i];
+		keys[i] = keys[j];
+		counts[i] = counts[j];
+		errors[i] = errors[j];
+		keys[j] = key;
+		counts[j] = count;
+		errors[j] = error;
+		positions.put(keys[i], i);
+		positions.put(keys[j], j);
+	}
+}
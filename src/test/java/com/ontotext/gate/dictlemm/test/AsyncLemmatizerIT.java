@@ -0,0 +1,206 @@
+package com.ontotext.gate.dictlemm.test;
+
+import com.ontotext.gate.dictlemm.AsyncLemmatizer;
+import gate.Annotation;
+import gate.Document;
+import gate.Factory;
+import gate.Gate;
+import gate.Utils;
+import gate.util.GateException;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class AsyncLemmatizerIT {
+	private static final String PLUGIN_DIR_PROPERTY_NAME = "pluginDir";
+	private static final long TIMEOUT_MILLIS = 10000;
+
+	@BeforeClass
+	public static void setup() throws GateException {
+		if (!Gate.isInitialised()) {
+			Gate.runInSandbox(true);
+			Gate.init();
+		}
+	}
+
+	private static File resourcesDir() {
+		return new File(System.getProperty(PLUGIN_DIR_PROPERTY_NAME), "resources");
+	}
+
+	/** Holds the submitted requests until the test runs them. */
+	private static class HeldExecutor implements Executor {
+		final ConcurrentLinkedQueue<Runnable> held = new ConcurrentLinkedQueue<>();
+
+		@Override
+		public void execute(Runnable command) {
+			held.add(command);
+		}
+
+		void runOne() {
+			held.remove().run();
+		}
+
+		void runAll() {
+			Runnable command;
+			while ((command = held.poll()) != null) command.run();
+		}
+	}
+
+	@Test
+	public void testOrder() throws Exception {
+		try (AsyncLemmatizer lemmatizer = new AsyncLemmatizer(resourcesDir(), "en")) {
+			List<CompletableFuture<List<String>>> futures = new ArrayList<>();
+			for (int i = 0; i < 50; i++) {
+				futures.add(lemmatizer.lemmatize(Arrays.asList(
+						new AsyncLemmatizer.Token("mice", "NNS"),
+						new AsyncLemmatizer.Token("ran", "VBD"),
+						new AsyncLemmatizer.Token(Integer.toString(i), "CD", "number"),
+						new AsyncLemmatizer.Token("houses", "NNS"))));
+			}
+			for (int i = 0; i < futures.size(); i++) {
+				Assert.assertEquals(Arrays.asList("mouse", "run", Integer.toString(i), "house"), futures.get(i).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+			}
+		}
+	}
+
+	@Test
+	public void testSettingsAreCopiedOnSubmit() throws Exception {
+		HeldExecutor executor = new HeldExecutor();
+		AsyncLemmatizer lemmatizer = new AsyncLemmatizer(resourcesDir(), "en", executor, 10);
+		Document document = Factory.newDocument("mice");
+		try {
+			Utils.addAnn(document.getAnnotations(), 0, 4, "Token", Utils.featureMap("string", "mice", "category", "NNS", "kind", "word"));
+			CompletableFuture<Document> future = lemmatizer.lemmatize(document, null, "Token");
+			lemmatizer.getSettings().setLemmaFeature("changed");
+			executor.runAll();
+
+			Annotation token = future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).getAnnotations().get("Token").iterator().next();
+			Assert.assertEquals("mouse", token.getFeatures().get("lemma"));
+			Assert.assertNull(token.getFeatures().get("changed"));
+		} finally {
+			lemmatizer.close();
+			Factory.deleteResource(document);
+		}
+	}
+
+	@Test
+	public void testBackPressure() throws Exception {
+		HeldExecutor executor = new HeldExecutor();
+		AsyncLemmatizer lemmatizer = new AsyncLemmatizer(resourcesDir(), "en", executor, 2);
+		try {
+			List<AsyncLemmatizer.Token> tokens = Arrays.asList(new AsyncLemmatizer.Token("mice", "NNS"));
+			CompletableFuture<List<String>> first = lemmatizer.lemmatize(tokens);
+			lemmatizer.lemmatize(tokens);
+
+			AtomicReference<CompletableFuture<List<String>>> third = new AtomicReference<>();
+			Thread producer = new Thread(() -> third.set(lemmatizer.lemmatize(tokens)));
+			producer.start();
+			producer.join(500);
+			Assert.assertTrue("the third request must wait while two are in flight", producer.isAlive());
+			Assert.assertNull(third.get());
+
+			executor.runOne();
+			producer.join(TIMEOUT_MILLIS);
+			Assert.assertFalse(producer.isAlive());
+			Assert.assertEquals(Arrays.asList("mouse"), first.get());
+			executor.runAll();
+			Assert.assertEquals(Arrays.asList("mouse"), third.get().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+		} finally {
+			executor.runAll();
+			lemmatizer.close();
+		}
+	}
+
+	@Test
+	public void testCloseWaitsForRequestsInFlight() throws Exception {
+		HeldExecutor executor = new HeldExecutor();
+		AsyncLemmatizer lemmatizer = new AsyncLemmatizer(resourcesDir(), "en", executor, 10);
+		CompletableFuture<List<String>> future = lemmatizer.lemmatize(Arrays.asList(new AsyncLemmatizer.Token("mice", "NNS")));
+
+		Thread closer = new Thread(lemmatizer::close);
+		closer.start();
+		closer.join(500);
+		Assert.assertTrue("close must wait for the request in flight", closer.isAlive());
+		Assert.assertFalse("the resources are kept while a request is in flight", lemmatizer.getResources().getEstimatedBytes().isEmpty());
+
+		executor.runAll();
+		closer.join(TIMEOUT_MILLIS);
+		Assert.assertFalse(closer.isAlive());
+		Assert.assertEquals(Arrays.asList("mouse"), future.get());
+		Assert.assertTrue("the resources are released", lemmatizer.getResources().getEstimatedBytes().isEmpty());
+
+		try {
+			lemmatizer.lemmatize(Arrays.asList(new AsyncLemmatizer.Token("mice", "NNS")));
+			Assert.fail("a closed lemmatizer must not accept requests");
+		} catch (IllegalStateException expected) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testCloseFailsBlockedSubmitter() throws Exception {
+		HeldExecutor executor = new HeldExecutor();
+		AsyncLemmatizer lemmatizer = new AsyncLemmatizer(resourcesDir(), "en", executor, 1);
+		List<AsyncLemmatizer.Token> tokens = Arrays.asList(new AsyncLemmatizer.Token("mice", "NNS"));
+		CompletableFuture<List<String>> first = lemmatizer.lemmatize(tokens);
+
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread submitter = new Thread(() -> {
+			try {
+				lemmatizer.lemmatize(tokens);
+			} catch (RuntimeException ex) {
+				failure.set(ex);
+			}
+		});
+		submitter.start();
+		awaitWaiting(submitter);
+		Thread closer = new Thread(lemmatizer::close);
+		closer.start();
+		awaitWaiting(closer);
+
+		// whoever gets the permit of the first request, the submitter must not wait forever
+		executor.runAll();
+		submitter.join(TIMEOUT_MILLIS);
+		closer.join(TIMEOUT_MILLIS);
+		Assert.assertFalse("the blocked submitter fails", submitter.isAlive());
+		Assert.assertFalse(closer.isAlive());
+		Assert.assertTrue(failure.get() instanceof IllegalStateException);
+		Assert.assertEquals(Arrays.asList("mouse"), first.get());
+		Assert.assertTrue("the resources are released", lemmatizer.getResources().getEstimatedBytes().isEmpty());
+		Assert.assertTrue("nothing was submitted after close", executor.held.isEmpty());
+	}
+
+	private static void awaitWaiting(Thread thread) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (thread.getState() != Thread.State.WAITING) {
+			if (System.currentTimeMillis() > deadline) Assert.fail(thread + " does not block");
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void testInterruptedClose() throws Exception {
+		HeldExecutor executor = new HeldExecutor();
+		AsyncLemmatizer lemmatizer = new AsyncLemmatizer(resourcesDir(), "en", executor, 10);
+		CompletableFuture<List<String>> future = lemmatizer.lemmatize(Arrays.asList(new AsyncLemmatizer.Token("mice", "NNS")));
+
+		Thread.currentThread().interrupt();
+		lemmatizer.close();
+		Assert.assertTrue("close keeps the interrupt", Thread.interrupted());
+		Assert.assertFalse("the resources are kept while a request is in flight", lemmatizer.getResources().getEstimatedBytes().isEmpty());
+
+		executor.runAll();
+		Assert.assertEquals(Arrays.asList("mouse"), future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+		Assert.assertTrue("the last request releases the resources", lemmatizer.getResources().getEstimatedBytes().isEmpty());
+	}
+}
@@ -0,0 +1,208 @@
+package com.ontotext.gate.dictlemm.test;
+
+import com.ontotext.gate.dictlemm.CompactDictionary;
+import com.ontotext.gate.dictlemm.DictLemmatizerPR;
+import com.ontotext.gate.dictlemm.PartOfSpeech;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares CompactDictionary with the hash maps it replaces on all bundled word lists.
+ * <p>
+ * The lookup benchmark is skipped unless a duration is given, like the throughput test:
+ * {@code mvn verify -Dit.test=CompactDictionaryIT -Dthroughput.seconds=10 -Dthroughput.languages=en,de}
+ */
+public class CompactDictionaryIT {
+	private static final Logger LOGGER = Logger.getLogger(CompactDictionaryIT.class);
+
+	private static final String PLUGIN_DIR_PROPERTY_NAME = "pluginDir";
+	private static final int SECONDS = Integer.getInteger("throughput.seconds", 0);
+	private static final String LANGUAGES = System.getProperty("throughput.languages", "en");
+
+	private static File dictionariesDir() {
+		return new File(new File(System.getProperty(PLUGIN_DIR_PROPERTY_NAME), "resources"), "dictionaries");
+	}
+
+	@Test
+	public void testBundledLists() {
+		File[] languageDirs = dictionariesDir().listFiles(File::isDirectory);
+		Assert.assertNotNull(languageDirs);
+		int nonAscii = 0;
+		for (File languageDir : languageDirs) {
+			for (PartOfSpeech pos : PartOfSpeech.values()) {
+				Map<String, String> map = DictLemmatizerPR.loadDictionary(new File(languageDir, pos.getDictionaryFileName()));
+				CompactDictionary dictionary = CompactDictionary.of(map);
+				String list = languageDir.getName() + " " + pos;
+				Assert.assertEquals(list, map.size(), dictionary.size());
+				Assert.assertEquals(list, map, new HashMap<>(dictionary));
+
+				for (Map.Entry<String, String> entry : map.entrySet()) {
+					String form = entry.getKey();
+					Assert.assertEquals(list + " " + form, entry.getValue(), dictionary.get(form));
+					Assert.assertNull(list + " " + form, dictionary.get(form + "\u0001"));
+					if (!isAscii(form)) nonAscii += 1;
+
+					// the form in the middle of a text, capitalized where lowercasing it gives the form back
+					String upper = form.toUpperCase(Locale.ROOT);
+					String key = upper.toLowerCase(Locale.ROOT).equals(form) && upper.length() == form.length() ? upper : form;
+					String text = "x " + key + " y";
+					Assert.assertEquals(list + " " + key, entry.getValue(), dictionary.getLowerCase(text, 2, 2 + key.length()));
+					Assert.assertNull(list + " " + key, dictionary.getLowerCase(text, 1, 2 + key.length()));
+				}
+			}
+		}
+		Assert.assertTrue("the lists have non-ASCII forms", nonAscii > 1000);
+	}
+
+	@Test
+	public void testAbsentKeys() {
+		Map<String, String> map = new HashMap<>();
+		map.put("mice", "mouse");
+		map.put("m\u00e4use", "maus");
+		map.put("\uD835\uDC00bc", "\uD835\uDC00b");
+		CompactDictionary dictionary = CompactDictionary.of(map);
+
+		Assert.assertEquals("maus", dictionary.get("m\u00e4use"));
+		Assert.assertEquals("\uD835\uDC00b", dictionary.get("\uD835\uDC00bc"));
+		Assert.assertNull(dictionary.get(""));
+		Assert.assertNull(dictionary.get("mic"));
+		Assert.assertNull(dictionary.get("micee"));
+		Assert.assertNull(dictionary.get("mause"));
+		Assert.assertNull(dictionary.get("\uD835\uDC00b"));
+		Assert.assertNull(dictionary.get(42));
+		Assert.assertNull(dictionary.get(null));
+		Assert.assertFalse(dictionary.containsKey("MICE"));
+		Assert.assertEquals("mouse", dictionary.getLowerCase("MICE", 0, 4));
+		Assert.assertEquals("maus", dictionary.getLowerCase("M\u00c4USE", 0, 5));
+		Assert.assertNull(dictionary.getLowerCase("MICE", 0, 3));
+
+		CompactDictionary empty = CompactDictionary.of(new HashMap<>());
+		Assert.assertEquals(0, empty.size());
+		Assert.assertNull(empty.get("mice"));
+		Assert.assertFalse(empty.entrySet().iterator().hasNext());
+	}
+
+	@Test
+	public void testUnsharedLemmas() {
+		Map<String, String> map = new HashMap<>();
+		map.put("cats", "cat");
+		map.put("hats", "hat");
+		map.put("went", "go");  // the only form with its script
+		map.put("ging", "go");  // another script only this form uses, the lemma is stored once
+		map.put(repeat("a", 300), "b");  // too long a suffix for a script
+		map.put(repeat("a", 299) + "c", "b");
+		CompactDictionary dictionary = CompactDictionary.of(map);
+
+		Assert.assertEquals("only the shared script is in the table", 1, dictionary.getScriptCount());
+		Assert.assertEquals(map, new HashMap<>(dictionary));
+		Assert.assertEquals("go", dictionary.get("went"));
+		Assert.assertEquals("go", dictionary.getLowerCase("x Went", 2, 6));
+		Assert.assertEquals("b", dictionary.get(repeat("a", 300)));
+		Assert.assertEquals("b", dictionary.getLowerCase(repeat("A", 300), 0, 300));
+		Assert.assertEquals("cat", dictionary.getLowerCase("CATS", 0, 4));
+	}
+
+	@Test
+	public void testScriptTableLimit() {
+		// 70000 scripts used by two forms each, the forms of those left out store their lemmata
+		Map<String, String> map = new HashMap<>();
+		for (int i = 0; i < 70000; i++) {
+			map.put("a" + i + "z", "a" + i + "-" + i);
+			map.put("b" + i + "z", "b" + i + "-" + i);
+		}
+		CompactDictionary dictionary = CompactDictionary.of(map);
+
+		Assert.assertEquals(65536, dictionary.getScriptCount());
+		Assert.assertEquals(map, new HashMap<>(dictionary));
+		// every script index of up to three varint bytes is used, including 63, 64, 8191 and 8192
+		for (Map.Entry<String, String> entry : map.entrySet()) Assert.assertEquals(entry.getValue(), dictionary.get(entry.getKey()));
+	}
+
+	@Test
+	public void testVarintBoundaries() {
+		// string lengths in UTF-8 bytes around one, two and three byte varints, lemmata by script and stored
+		Map<String, String> map = new HashMap<>();
+		for (int length : new int[]{127, 128, 16383, 16384}) {
+			map.put(repeat("d", length), repeat("d", length));
+			map.put(repeat("e", length - 1) + "s", repeat("e", length - 1));
+			map.put(repeat("f", length), repeat("g", length));
+			map.put(repeat("\u00e4", length / 2) + (length % 2 == 0 ? "" : "h"), repeat("\u00f6", length / 2));
+		}
+		CompactDictionary dictionary = CompactDictionary.of(map);
+		Assert.assertEquals(map, new HashMap<>(dictionary));
+		for (Map.Entry<String, String> entry : map.entrySet()) Assert.assertEquals(entry.getValue(), dictionary.get(entry.getKey()));
+
+		// stored lemmata follow a padding lemma of growing length, so that in some of the dictionaries
+		// one of them is at offset 63 or 64, or 8191 or 8192, which have lemma codes of one, two or three bytes
+		for (int base : new int[]{0, 8100}) {
+			for (int padding = 0; padding < 32; padding++) {
+				Map<String, String> ordered = new LinkedHashMap<>();
+				ordered.put("pad", repeat("p", base + padding));
+				for (int i = 0; i < 120; i++) ordered.put("went" + i, "go" + i);
+				dictionary = CompactDictionary.of(ordered);
+				Assert.assertEquals(0, dictionary.getScriptCount());
+				for (Map.Entry<String, String> entry : ordered.entrySet()) {
+					Assert.assertEquals(base + padding + " " + entry.getKey(), entry.getValue(), dictionary.get(entry.getKey()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Looks up freshly lowercased keys, as the PR does, so that neither map has their hash codes
+	 * cached, and reports nanoseconds per lookup with a quarter of absent keys.
+	 */
+	@Test
+	public void benchmark() {
+		Assume.assumeTrue("throughput.seconds is not set, skipping benchmark", SECONDS > 0);
+		for (String language : LANGUAGES.split(",")) {
+			language = language.trim();
+			Map<String, String> map = DictLemmatizerPR.loadDictionary(new File(new File(dictionariesDir(), language), PartOfSpeech.NOUN.getDictionaryFileName()));
+			CompactDictionary dictionary = CompactDictionary.of(map);
+			String[] forms = map.keySet().toArray(new String[0]);
+			String[] keys = new String[1000000];
+			Random random = new Random(42);
+			for (int i = 0; i < keys.length; i++) {
+				String form = forms[random.nextInt(forms.length)];
+				keys[i] = (random.nextInt(4) == 0 ? form + "x" : form).toUpperCase(Locale.ROOT);
+			}
+
+			long deadline = System.nanoTime() + SECONDS * 1000000000L;
+			double hashMapNanos = 0;
+			double compactNanos = 0;
+			do {
+				hashMapNanos = time(map, keys);
+				compactNanos = time(dictionary, keys);
+			} while (System.nanoTime() < deadline);
+			LOGGER.info(String.format("%s NOUN, %d forms: HashMap %.1f ns, CompactDictionary %.1f ns per lookup", language, map.size(), hashMapNanos, compactNanos));
+		}
+	}
+
+	private static double time(Map<String, String> map, String[] keys) {
+		long start = System.nanoTime();
+		int found = 0;
+		for (String key : keys) if (map.get(key.toLowerCase()) != null) found += 1;
+		Assert.assertTrue(found > 0);
+		return (System.nanoTime() - start) / (double) keys.length;
+	}
+
+	private static String repeat(String s, int times) {
+		StringBuilder repeated = new StringBuilder();
+		for (int i = 0; i < times; i++) repeated.append(s);
+		return repeated.toString();
+	}
+
+	private static boolean isAscii(String s) {
+		for (int i = 0; i < s.length(); i++) if (s.charAt(i) >= 0x80) return false;
+		return true;
+	}
+}
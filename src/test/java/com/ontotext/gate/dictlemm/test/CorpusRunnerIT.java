@@ -0,0 +1,134 @@
+package com.ontotext.gate.dictlemm.test;
+
+import com.ontotext.gate.dictlemm.CorpusRunner;
+import gate.*;
+import gate.corpora.DocumentStaxUtils;
+import gate.creole.AbstractLanguageAnalyser;
+import gate.creole.ConditionalSerialAnalyserController;
+import gate.creole.ExecutionException;
+import gate.creole.SerialAnalyserController;
+import gate.creole.metadata.CreoleResource;
+import gate.util.GateException;
+import gate.util.persistence.PersistenceManager;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+public class CorpusRunnerIT {
+	private static final String PLUGIN_DIR_PROPERTY_NAME = "pluginDir";
+	private static final String PIPELINE_RESOURCE_PATH = "/test-pipeline.gapp";
+	private static final String INPUT_DOCUMENT_RESOURCE_PATH = "/input-documents/lemma.xml";
+	private static final int NUM_DOCUMENTS = 20;
+
+	private static ConditionalSerialAnalyserController pipeline;
+
+	/** Fails on documents with a fail feature, with an exception or with an error. */
+	@CreoleResource(name = "Failing PR", comment = "fails on documents with a fail feature")
+	public static class FailingPR extends AbstractLanguageAnalyser {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public void execute() throws ExecutionException {
+			Object fail = document.getFeatures().get("fail");
+			if ("exception".equals(fail)) throw new ExecutionException("failing " + document.getName());
+			if ("error".equals(fail)) throw new FailingError();
+		}
+	}
+
+	public static class FailingError extends Error {
+		private static final long serialVersionUID = 1L;
+	}
+
+	@BeforeClass
+	public static void setup() throws GateException, IOException {
+		if (!Gate.isInitialised()) {
+			Gate.runInSandbox(true);
+			Gate.init();
+		}
+		Gate.getCreoleRegister().registerDirectories(new File(System.getProperty(PLUGIN_DIR_PROPERTY_NAME)).toURI().toURL());
+		Gate.getCreoleRegister().registerComponent(FailingPR.class);
+		pipeline = (ConditionalSerialAnalyserController) PersistenceManager.loadObjectFromUrl(CorpusRunnerIT.class.getResource(PIPELINE_RESOURCE_PATH));
+		pipeline.add((ProcessingResource) Factory.createResource(FailingPR.class.getName()));
+	}
+
+	@AfterClass
+	public static void cleanup() {
+		if (pipeline != null) Factory.deleteResource(pipeline);
+	}
+
+	private static File inputDirectory() throws IOException {
+		File inputDir = Files.createTempDirectory("corpus-runner-input").toFile();
+		for (int i = 0; i < NUM_DOCUMENTS; i++) {
+			Files.copy(CorpusRunnerIT.class.getResourceAsStream(INPUT_DOCUMENT_RESOURCE_PATH), new File(inputDir, String.format("doc%02d.xml", i)).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		return inputDir;
+	}
+
+	private static void writeFailing(File file, String fail) throws Exception {
+		Document document = Factory.newDocument("fails");
+		document.getFeatures().put("fail", fail);
+		DocumentStaxUtils.writeDocument(document, file);
+		Factory.deleteResource(document);
+	}
+
+	@Test
+	public void test() throws Exception {
+		File inputDir = inputDirectory();
+		File outputDir = Files.createTempDirectory("corpus-runner-output").toFile();
+		writeFailing(new File(inputDir, "broken.xml"), "exception");
+
+		CorpusRunner.Result result = new CorpusRunner(pipeline)
+				.setWorkers(3)
+				.setPrefetch(4)
+				.setOutputDirectory(outputDir, CorpusRunner.Output.ORDERED)
+				.run(inputDir);
+
+		Assert.assertEquals("processed documents", NUM_DOCUMENTS, result.getDocuments());
+		Assert.assertEquals("failed documents", 1, result.getFailedDocuments().size());
+		Assert.assertEquals("broken.xml", result.getFailedDocuments().get(0));
+
+		for (int i = 0; i < NUM_DOCUMENTS; i++) {
+			File outputFile = new File(outputDir, String.format("doc%02d.xml", i));
+			Assert.assertTrue("missing output " + outputFile, outputFile.exists());
+			Document document = Factory.newDocument(outputFile.toURI().toURL(), StandardCharsets.UTF_8.name());
+			try {
+				for (Annotation token : document.getAnnotations().get("Token")) {
+					Assert.assertNotNull("missing lemma in " + outputFile + ": " + token, token.getFeatures().get("lemma"));
+				}
+			} finally {
+				Factory.deleteResource(document);
+			}
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testError() throws Exception {
+		File inputDir = inputDirectory();
+		File outputDir = Files.createTempDirectory("corpus-runner-output").toFile();
+		// sorted before most documents, so the ordered output waits for it
+		writeFailing(new File(inputDir, "doc05-error.xml"), "error");
+
+		SerialAnalyserController controller = (SerialAnalyserController) Factory.createResource(SerialAnalyserController.class.getName());
+		controller.add((ProcessingResource) Factory.createResource(FailingPR.class.getName()));
+		try {
+			new CorpusRunner(controller)
+					.setWorkers(2)
+					.setPrefetch(3)
+					.setOutputDirectory(outputDir, CorpusRunner.Output.ORDERED)
+					.run(inputDir);
+			Assert.fail("the error is not thrown");
+		} catch (FailingError expected) {
+			// the run stops instead of waiting for the failed document forever
+		} finally {
+			Factory.deleteResource(controller);
+		}
+		Assert.assertTrue("documents before the failed one are written", new File(outputDir, "doc04.xml").exists());
+	}
+}
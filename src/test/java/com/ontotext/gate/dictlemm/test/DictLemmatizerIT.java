@@ -1,5 +1,8 @@
 package com.ontotext.gate.dictlemm.test;
 
+import com.ontotext.gate.dictlemm.DiagnosticsLevel;
+import com.ontotext.gate.dictlemm.LemmaOutcome;
+import com.ontotext.gate.dictlemm.TokenLemmatizer;
 import gate.*;
 import gate.creole.ConditionalSerialAnalyserController;
 import gate.creole.ExecutionException;
@@ -17,6 +20,8 @@ import java.io.FileFilter;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -36,8 +41,10 @@ public class DictLemmatizerIT {
 
 	@BeforeClass
 	public static void setup() throws GateException, IOException {
-		Gate.runInSandbox(true);
-		Gate.init();
+		if (!Gate.isInitialised()) {
+			Gate.runInSandbox(true);
+			Gate.init();
+		}
 		Gate.getCreoleRegister().registerDirectories(new File(System.getProperty(PLUGIN_DIR_PROPERTY_NAME)).toURI().toURL());
 		pipeline = (ConditionalSerialAnalyserController) PersistenceManager.loadObjectFromUrl(DictLemmatizerIT.class.getResource(PIPELINE_RESOURCE_PATH));
 
@@ -82,6 +89,113 @@ public class DictLemmatizerIT {
 		for (Thread thread : threads) thread.join();
 	}
 
+	@Test
+	public void testDocumentText() throws ResourceInstantiationException, ExecutionException {
+		ConditionalSerialAnalyserController pipeline = (ConditionalSerialAnalyserController) Factory.duplicate(DictLemmatizerIT.pipeline);
+		Corpus inputCorpus = (Corpus) Factory.duplicate(DictLemmatizerIT.inputCorpus);
+		try {
+			// without a text feature the tokens are looked up in the document content
+			pipeline.getPRs().iterator().next().setParameterValue("textFeature", "");
+			verifyLemmas(pipeline, inputCorpus, outputCorpus);
+		} finally {
+			Factory.deleteResource(pipeline);
+			Factory.deleteResource(inputCorpus);
+		}
+	}
+
+	/** The tokens of {@link #diagnosticsDocument()} with the status codes which downstream pipelines read. */
+	private static final String[][] STATUS_TOKENS = {
+			// string, category, kind, lemmatizer.status as written before the diagnostics levels
+			{"2", "CD", "number", "number"},
+			{",", ",", "punct", "punct"},
+			{"mice", "NNS", "word", "NOUN-FOUND"},
+			{"the", "DT", "word", "DET-FOUND"},
+			{"ran", "VBD", "word", "VERB-FOUND"},
+			{"and", "CC", "word", "UNHANDLEDPOS-CC-NOTFOUND-HFST_EMPTY"},
+			{"qwxzv", "NN", "word", "NOUN-NOTFOUND-HFST_EMPTY"},
+	};
+
+	private static Document diagnosticsDocument() throws ResourceInstantiationException {
+		StringBuilder text = new StringBuilder();
+		for (String[] token : STATUS_TOKENS) text.append(token[0]).append(' ');
+		Document document = Factory.newDocument(text.toString());
+		long start = 0;
+		for (String[] token : STATUS_TOKENS) {
+			Utils.addAnn(document.getAnnotations(), start, start + token[0].length(), "Token", Utils.featureMap("string", token[0], "category", token[1], "kind", token[2]));
+			start += token[0].length() + 1;
+		}
+		return document;
+	}
+
+	private static Document lemmatize(DiagnosticsLevel level) throws ResourceInstantiationException, ExecutionException {
+		ConditionalSerialAnalyserController pipeline = (ConditionalSerialAnalyserController) Factory.duplicate(DictLemmatizerIT.pipeline);
+		Corpus corpus = Factory.newCorpus("diagnostics");
+		try {
+			pipeline.getPRs().iterator().next().setParameterValue("diagnostics", level);
+			corpus.add(diagnosticsDocument());
+			pipeline.setCorpus(corpus);
+			pipeline.execute();
+			return corpus.get(0);
+		} finally {
+			Factory.deleteResource(pipeline);
+			Factory.deleteResource(corpus);
+		}
+	}
+
+	private static List<Annotation> tokens(Document document) {
+		return Utils.inDocumentOrder(document.getAnnotations().get("Token"));
+	}
+
+	@Test
+	public void testPerTokenDiagnostics() throws ResourceInstantiationException, ExecutionException {
+		Document document = lemmatize(DiagnosticsLevel.PER_TOKEN);
+		try {
+			List<Annotation> tokens = tokens(document);
+			for (int i = 0; i < STATUS_TOKENS.length; i++) {
+				Assert.assertEquals(STATUS_TOKENS[i][0], STATUS_TOKENS[i][3], tokens.get(i).getFeatures().get(TokenLemmatizer.STATUS_FEATURE));
+				Assert.assertNotNull(tokens.get(i).getFeatures().get("lemma"));
+			}
+			Assert.assertNull(document.getFeatures().get(TokenLemmatizer.SUMMARY_FEATURE));
+		} finally {
+			Factory.deleteResource(document);
+		}
+	}
+
+	@Test
+	public void testSummaryDiagnostics() throws ResourceInstantiationException, ExecutionException {
+		Document document = lemmatize(DiagnosticsLevel.SUMMARY);
+		try {
+			for (Annotation token : tokens(document)) {
+				Assert.assertNull(token.getFeatures().get(TokenLemmatizer.STATUS_FEATURE));
+				Assert.assertNotNull(token.getFeatures().get("lemma"));
+			}
+			Map<?, ?> summary = (Map<?, ?>) document.getFeatures().get(TokenLemmatizer.SUMMARY_FEATURE);
+			Assert.assertNotNull(summary);
+			Assert.assertEquals(1, summary.get(LemmaOutcome.NUMBER.name()));
+			Assert.assertEquals(1, summary.get(LemmaOutcome.PUNCT.name()));
+			Assert.assertEquals(3, summary.get(LemmaOutcome.FOUND.name()));
+			int total = 0;
+			for (Object count : summary.values()) total += (Integer) count;
+			Assert.assertEquals(STATUS_TOKENS.length, total);
+		} finally {
+			Factory.deleteResource(document);
+		}
+	}
+
+	@Test
+	public void testNoDiagnostics() throws ResourceInstantiationException, ExecutionException {
+		Document document = lemmatize(DiagnosticsLevel.NONE);
+		try {
+			for (Annotation token : tokens(document)) {
+				Assert.assertNull(token.getFeatures().get(TokenLemmatizer.STATUS_FEATURE));
+				Assert.assertNotNull(token.getFeatures().get("lemma"));
+			}
+			Assert.assertNull(document.getFeatures().get(TokenLemmatizer.SUMMARY_FEATURE));
+		} finally {
+			Factory.deleteResource(document);
+		}
+	}
+
 	private static void verifyLemmas(ConditionalSerialAnalyserController pipeline, Corpus inputCorpus, Corpus outputCorpus) throws ExecutionException {
 		pipeline.setCorpus(inputCorpus);
 		pipeline.execute();
@@ -0,0 +1,143 @@
+package com.ontotext.gate.dictlemm.test;
+
+import com.ontotext.gate.dictlemm.DictionaryOverlay;
+import com.ontotext.gate.dictlemm.LanguageResources;
+import com.ontotext.gate.dictlemm.PartOfSpeech;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.function.BooleanSupplier;
+import java.util.zip.GZIPOutputStream;
+
+public class DictionaryOverlayIT {
+	private static final long TIMEOUT_MILLIS = 10000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File overlayDir;
+	private File langDir;
+	private DictionaryOverlay overlay;
+
+	@Before
+	public void setup() throws IOException {
+		overlayDir = folder.newFolder("overlay");
+		langDir = new File(overlayDir, "en");
+		Assert.assertTrue(langDir.mkdir());
+	}
+
+	@After
+	public void close() {
+		if (overlay != null) overlay.close();
+	}
+
+	private static String fileName(PartOfSpeech pos) {
+		return pos.getDictionaryFileName().replaceFirst("\\.gz$", "");
+	}
+
+	private static void writePlain(File file, String content) throws IOException {
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void writeGzip(File file, String content) throws IOException {
+		try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(file.toPath()))) {
+			out.write(content.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	/** Writes a plain list under another name and renames it, the way lists should be replaced. */
+	private void replace(PartOfSpeech pos, String content) throws IOException {
+		File tmp = new File(overlayDir, fileName(pos) + ".tmp");
+		writePlain(tmp, content);
+		Files.move(tmp.toPath(), new File(langDir, fileName(pos)).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static void await(String message, BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) Assert.fail(message);
+			Thread.sleep(50);
+		}
+	}
+
+	@Test
+	public void testMissingDirectory() {
+		Assert.assertNull(DictionaryOverlay.open(overlayDir, "de"));
+	}
+
+	@Test
+	public void testLoad() throws IOException {
+		writePlain(new File(langDir, fileName(PartOfSpeech.NOUN)), "mouse===Mice;mouses\n");
+		writeGzip(new File(langDir, PartOfSpeech.VERB.getDictionaryFileName()), "go===went\n");
+		overlay = DictionaryOverlay.open(overlayDir, "en");
+
+		Assert.assertEquals(3, overlay.size());
+		Assert.assertEquals("forms are lowercased", "mouse", overlay.get(PartOfSpeech.NOUN, "mice"));
+		Assert.assertEquals("mouse", overlay.getLowerCase(PartOfSpeech.NOUN, "two MICE", 4, 8));
+		Assert.assertEquals("go", overlay.get(PartOfSpeech.VERB, "went"));
+		Assert.assertNull("the lists are per part of speech", overlay.get(PartOfSpeech.VERB, "mice"));
+		Assert.assertNull(overlay.get(PartOfSpeech.ADJ, "mice"));
+	}
+
+	@Test
+	public void testRenamedListIsReloaded() throws Exception {
+		replace(PartOfSpeech.NOUN, "mouse===mice\n");
+		overlay = DictionaryOverlay.open(overlayDir, "en");
+		Assert.assertEquals("mouse", overlay.get(PartOfSpeech.NOUN, "mice"));
+
+		replace(PartOfSpeech.NOUN, "louse===lice\n");
+		await("the replaced list is reloaded", () -> "louse".equals(overlay.get(PartOfSpeech.NOUN, "lice")));
+		Assert.assertNull("the old list is dropped", overlay.get(PartOfSpeech.NOUN, "mice"));
+	}
+
+	@Test
+	public void testUnreadableListKeepsOldLists() throws Exception {
+		replace(PartOfSpeech.NOUN, "mouse===mice\n");
+		overlay = DictionaryOverlay.open(overlayDir, "en");
+
+		writePlain(new File(langDir, PartOfSpeech.VERB.getDictionaryFileName()), "not gzipped");
+		Thread.sleep(4 * DictionaryOverlay.SETTLE_MILLIS);
+		Assert.assertEquals("mouse", overlay.get(PartOfSpeech.NOUN, "mice"));
+
+		writeGzip(new File(langDir, PartOfSpeech.VERB.getDictionaryFileName()), "go===went\n");
+		await("the fixed list is loaded", () -> "go".equals(overlay.get(PartOfSpeech.VERB, "went")));
+		Assert.assertEquals("mouse", overlay.get(PartOfSpeech.NOUN, "mice"));
+	}
+
+	@Test
+	public void testRecreatedDirectoryIsWatched() throws Exception {
+		File list = new File(langDir, fileName(PartOfSpeech.NOUN));
+		writePlain(list, "mouse===mice\n");
+		overlay = DictionaryOverlay.open(overlayDir, "en");
+
+		Assert.assertTrue(list.delete());
+		Assert.assertTrue(langDir.delete());
+		await("the lists of a deleted directory are dropped", () -> overlay.size() == 0);
+
+		Assert.assertTrue(langDir.mkdir());
+		replace(PartOfSpeech.NOUN, "louse===lice\n");
+		await("the recreated directory is watched", () -> "louse".equals(overlay.get(PartOfSpeech.NOUN, "lice")));
+	}
+
+	@Test
+	public void testMissingDirectoryIsLookedUpOnce() throws IOException {
+		LanguageResources resources = LanguageResources.acquire(folder.newFolder("resources"), "de");
+		try {
+			Assert.assertNull(resources.getOverlay(overlayDir));
+			Assert.assertTrue(new File(overlayDir, "de").mkdir());
+			Assert.assertNull("the missing directory is remembered", resources.getOverlay(overlayDir));
+		} finally {
+			resources.release();
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package com.ontotext.gate.dictlemm.test;
+
+import com.ontotext.gate.dictlemm.HfstCircuitBreaker;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HfstCircuitBreakerIT {
+	private static final double MAX_FAILURE_RATE = 0.5;
+	private static final long OPEN_MILLIS = 200;
+	private static final long TIMEOUT_MILLIS = 10000;
+
+	private static void record(HfstCircuitBreaker breaker, int failures, int successes) {
+		for (int i = 0; i < failures; i++) breaker.record(true, MAX_FAILURE_RATE);
+		for (int i = 0; i < successes; i++) breaker.record(false, MAX_FAILURE_RATE);
+	}
+
+	@Test
+	public void testOpensAtEndOfWindow() {
+		HfstCircuitBreaker breaker = new HfstCircuitBreaker("xx");
+		record(breaker, HfstCircuitBreaker.WINDOW_SIZE - 1, 0);
+		Assert.assertTrue("the breaker only decides at the end of a window", breaker.allowRequest());
+		record(breaker, 1, 0);
+		Assert.assertFalse("a window of failures opens the breaker", breaker.allowRequest());
+	}
+
+	@Test
+	public void testOpensAboveMaxFailureRate() {
+		HfstCircuitBreaker breaker = new HfstCircuitBreaker("xx");
+		int half = HfstCircuitBreaker.WINDOW_SIZE / 2;
+		record(breaker, half, half);
+		Assert.assertTrue("a failure rate equal to the maximum keeps the breaker closed", breaker.allowRequest());
+		record(breaker, half + 1, half - 1);
+		Assert.assertFalse("a failure rate above the maximum opens the breaker", breaker.allowRequest());
+	}
+
+	@Test
+	public void testWindowsAreCountedSeparately() {
+		HfstCircuitBreaker breaker = new HfstCircuitBreaker("xx");
+		record(breaker, 0, HfstCircuitBreaker.WINDOW_SIZE);
+		record(breaker, HfstCircuitBreaker.WINDOW_SIZE / 2, HfstCircuitBreaker.WINDOW_SIZE / 2);
+		Assert.assertTrue("the successes of the first window do not count in the second", breaker.allowRequest());
+		record(breaker, HfstCircuitBreaker.WINDOW_SIZE, 0);
+		Assert.assertFalse(breaker.allowRequest());
+	}
+
+	@Test
+	public void testClosesAfterOpenPeriod() throws InterruptedException {
+		HfstCircuitBreaker breaker = new HfstCircuitBreaker("xx", OPEN_MILLIS);
+		long opened = System.currentTimeMillis();
+		record(breaker, HfstCircuitBreaker.WINDOW_SIZE, 0);
+		Assert.assertFalse(breaker.allowRequest());
+
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (!breaker.allowRequest()) {
+			if (System.currentTimeMillis() > deadline) Assert.fail("the breaker does not close after the open period");
+			Thread.sleep(10);
+		}
+		Assert.assertTrue("the breaker stays open for the open period", System.currentTimeMillis() - opened >= OPEN_MILLIS);
+
+		record(breaker, HfstCircuitBreaker.WINDOW_SIZE, 0);
+		Assert.assertFalse("persisting failures open the breaker again", breaker.allowRequest());
+		record(breaker, 0, HfstCircuitBreaker.WINDOW_SIZE);
+		Assert.assertTrue("a good window closes the breaker", breaker.allowRequest());
+	}
+}
@@ -0,0 +1,127 @@
+package com.ontotext.gate.dictlemm.test;
+
+import com.ontotext.gate.dictlemm.HfstResultCache;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class HfstResultCacheIT {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File cacheDir;
+	private File modelFile;
+
+	@Before
+	public void setup() throws IOException {
+		cacheDir = new File(folder.getRoot(), "cache");
+		modelFile = folder.newFile("en.hfst.ol.gz");
+		Files.write(modelFile.toPath(), "model".getBytes(StandardCharsets.UTF_8));
+	}
+
+	private File cacheFile() {
+		File[] files = cacheDir.listFiles((dir, name) -> name.endsWith(".hfstcache"));
+		Assert.assertNotNull(files);
+		Assert.assertEquals(1, files.length);
+		return files[0];
+	}
+
+	@Test
+	public void testRoundTrip() {
+		HfstResultCache cache = HfstResultCache.open(cacheDir, modelFile, "en");
+		Assert.assertEquals(0, cache.size());
+		cache.put("mice", "NNS", "mouse");
+		cache.put("flurbs", "NNS", null);
+		cache.put("G\u00e4nse", "NNS", "Gans");
+		Assert.assertEquals("pending results are found before the flush", "mouse", cache.get("mice", "NNS"));
+		cache.flush();
+		Assert.assertEquals(3, cache.size());
+
+		HfstResultCache reopened = HfstResultCache.open(cacheDir, modelFile, "en");
+		Assert.assertEquals(3, reopened.size());
+		Assert.assertEquals("mouse", reopened.get("mice", "NNS"));
+		Assert.assertEquals("no lemma is cached as the empty string", "", reopened.get("flurbs", "NNS"));
+		Assert.assertEquals("Gans", reopened.get("G\u00e4nse", "NNS"));
+		Assert.assertNull("the POS tag is part of the key", reopened.get("mice", "VBZ"));
+		Assert.assertNull(reopened.get("geese", "NNS"));
+	}
+
+	@Test
+	public void testMerge() {
+		// two pipelines or JVMs which opened the cache before either of them flushed
+		HfstResultCache first = HfstResultCache.open(cacheDir, modelFile, "en");
+		HfstResultCache second = HfstResultCache.open(cacheDir, modelFile, "en");
+		first.put("mice", "NNS", "mouse");
+		first.put("geese", "NNS", "goose");
+		second.put("ran", "VBD", "run");
+		second.put("geese", "NNS", "goose");
+		first.flush();
+		second.flush();
+
+		HfstResultCache merged = HfstResultCache.open(cacheDir, modelFile, "en");
+		Assert.assertEquals(3, merged.size());
+		Assert.assertEquals("mouse", merged.get("mice", "NNS"));
+		Assert.assertEquals("goose", merged.get("geese", "NNS"));
+		Assert.assertEquals("run", merged.get("ran", "VBD"));
+
+		merged.put("mice", "NNS", "mice");
+		merged.flush();
+		Assert.assertEquals("a new result replaces the old one", "mice", HfstResultCache.open(cacheDir, modelFile, "en").get("mice", "NNS"));
+		Assert.assertEquals(0, cacheDir.listFiles((dir, name) -> name.endsWith(".tmp")).length);
+	}
+
+	@Test
+	public void testOtherModel() throws IOException {
+		HfstResultCache cache = HfstResultCache.open(cacheDir, modelFile, "en");
+		cache.put("mice", "NNS", "mouse");
+		cache.flush();
+
+		Files.write(modelFile.toPath(), "new model".getBytes(StandardCharsets.UTF_8));
+		HfstResultCache reopened = HfstResultCache.open(cacheDir, modelFile, "en");
+		Assert.assertEquals(0, reopened.size());
+		Assert.assertNull(reopened.get("mice", "NNS"));
+	}
+
+	@Test
+	public void testCorruptFile() throws IOException {
+		HfstResultCache cache = HfstResultCache.open(cacheDir, modelFile, "en");
+		for (int i = 0; i < 100; i++) cache.put("word" + i, "NN", "lemma" + i);
+		cache.flush();
+		File file = cacheFile();
+
+		// truncated in the middle of the entries
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(raf.length() / 2);
+		}
+		assertEmpty(HfstResultCache.open(cacheDir, modelFile, "en"));
+
+		// an entry count beyond the end of the file
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(4);
+			raf.writeInt(Integer.MAX_VALUE);
+		}
+		assertEmpty(HfstResultCache.open(cacheDir, modelFile, "en"));
+
+		// not a cache file
+		Files.write(file.toPath(), "garbage".getBytes(StandardCharsets.UTF_8));
+		HfstResultCache recovered = HfstResultCache.open(cacheDir, modelFile, "en");
+		assertEmpty(recovered);
+		recovered.put("mice", "NNS", "mouse");
+		recovered.flush();
+		Assert.assertEquals("mouse", HfstResultCache.open(cacheDir, modelFile, "en").get("mice", "NNS"));
+	}
+
+	private static void assertEmpty(HfstResultCache cache) {
+		Assert.assertEquals(0, cache.size());
+		Assert.assertNull(cache.get("word1", "NN"));
+		Assert.assertNull(cache.get("word99", "NN"));
+	}
+}
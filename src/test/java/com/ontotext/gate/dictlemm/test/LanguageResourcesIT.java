@@ -0,0 +1,43 @@
+package com.ontotext.gate.dictlemm.test;
+
+import com.ontotext.gate.dictlemm.LanguageResources;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+public class LanguageResourcesIT {
+	private static final String PLUGIN_DIR_PROPERTY_NAME = "pluginDir";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static File resourcesDir() {
+		return new File(System.getProperty(PLUGIN_DIR_PROPERTY_NAME), "resources");
+	}
+
+	@Test
+	public void testMemoryReportPerResourcesDirectory() throws IOException {
+		File customDir = folder.newFolder("resources");
+		LanguageResources bundled = LanguageResources.acquire(resourcesDir(), "en");
+		LanguageResources custom = LanguageResources.acquire(customDir, "en");
+		try {
+			Map<String, Map<String, Long>> report = LanguageResources.memoryReport();
+			Map<String, Long> bundledBytes = report.get(resourcesDir().getAbsolutePath() + File.pathSeparator + "en");
+			Map<String, Long> customBytes = report.get(customDir.getAbsolutePath() + File.pathSeparator + "en");
+			Assert.assertNotNull("the bundled resources are reported", bundledBytes);
+			Assert.assertNotNull("the custom resources are reported", customBytes);
+			Assert.assertEquals(bundled.getEstimatedBytes(), bundledBytes);
+			Assert.assertEquals(custom.getEstimatedBytes(), customBytes);
+			Assert.assertNotEquals("the custom directory has no lists", bundledBytes, customBytes);
+		} finally {
+			custom.release();
+			bundled.release();
+		}
+		Assert.assertFalse(LanguageResources.memoryReport().containsKey(customDir.getAbsolutePath() + File.pathSeparator + "en"));
+	}
+}
@@ -0,0 +1,185 @@
+package com.ontotext.gate.dictlemm.test;
+
+import com.ontotext.gate.dictlemm.LanguageResources;
+import gate.*;
+import gate.creole.ConditionalSerialAnalyserController;
+import gate.creole.ControllerAwarePR;
+import gate.creole.ExecutionException;
+import gate.util.GateException;
+import gate.util.persistence.PersistenceManager;
+import org.apache.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Throughput and soak harness: runs duplicates of the lemmatizer on 1..N threads over synthetic
+ * corpora for a fixed time and reports tokens per second, document latency percentiles, heap
+ * after GC and scaling efficiency.
+ * <p>
+ * It is skipped unless a duration is given, e.g.
+ * {@code mvn verify -Dthroughput.seconds=30 -Dthroughput.maxThreads=8 -Dthroughput.languages=en,de}
+ */
+public class LemmatizerThroughputIT {
+	private static final Logger LOGGER = Logger.getLogger(LemmatizerThroughputIT.class);
+
+	private static final String PLUGIN_DIR_PROPERTY_NAME = "pluginDir";
+	private static final String PIPELINE_RESOURCE_PATH = "/test-pipeline.gapp";
+
+	private static final int SECONDS = Integer.getInteger("throughput.seconds", 0);
+	private static final int MAX_THREADS = Integer.getInteger("throughput.maxThreads", 4);
+	private static final int DOCUMENTS = Integer.getInteger("throughput.documents", 50);
+	private static final int TOKENS_PER_DOCUMENT = Integer.getInteger("throughput.tokensPerDocument", 500);
+	private static final String LANGUAGES = System.getProperty("throughput.languages", "en");
+
+	private static ConditionalSerialAnalyserController pipeline;
+
+	@BeforeClass
+	public static void setup() throws GateException, IOException {
+		Assume.assumeTrue("throughput.seconds is not set, skipping throughput test", SECONDS > 0);
+
+		if (!Gate.isInitialised()) {
+			Gate.runInSandbox(true);
+			Gate.init();
+		}
+		Gate.getCreoleRegister().registerDirectories(new File(System.getProperty(PLUGIN_DIR_PROPERTY_NAME)).toURI().toURL());
+		pipeline = (ConditionalSerialAnalyserController) PersistenceManager.loadObjectFromUrl(LemmatizerThroughputIT.class.getResource(PIPELINE_RESOURCE_PATH));
+	}
+
+	@AfterClass
+	public static void cleanup() {
+		if (pipeline != null) Factory.deleteResource(pipeline);
+	}
+
+	@Test
+	public void test() throws Exception {
+		File dictionariesDir = new File(new File(System.getProperty(PLUGIN_DIR_PROPERTY_NAME), "resources"), "dictionaries");
+		LanguageAnalyser lemmatizer = (LanguageAnalyser) pipeline.getPRs().iterator().next();
+
+		for (String language : LANGUAGES.split(",")) {
+			language = language.trim();
+			lemmatizer.setParameterValue("languageCode", language);
+			SyntheticCorpusGenerator generator = new SyntheticCorpusGenerator(new File(dictionariesDir, language), 42);
+
+			LOGGER.info("language " + language + ": " + DOCUMENTS + " documents of " + TOKENS_PER_DOCUMENT + " tokens per thread, " + SECONDS + " s per run");
+			LOGGER.info(String.format("%-8s %12s %10s %10s %10s %10s %12s %10s", "threads", "tokens/s", "docs", "p50 ms", "p90 ms", "p99 ms", "heap MB", "scaling"));
+			double singleThreadThroughput = 0;
+			Result result = null;
+			for (int threads = 1; threads <= MAX_THREADS; threads++) {
+				result = run(lemmatizer, generator, threads);
+				double throughput = result.tokens / result.seconds;
+				if (threads == 1) singleThreadThroughput = throughput;
+				LOGGER.info(String.format("%-8d %12.0f %10d %10.2f %10.2f %10.2f %12.1f %9.0f%%",
+						threads, throughput, result.latencies.length,
+						percentile(result.latencies, 0.50), percentile(result.latencies, 0.90), percentile(result.latencies, 0.99),
+						result.heapBytes / 1048576.0, 100 * throughput / (threads * singleThreadThroughput)));
+			}
+			LOGGER.info("retained by language resources: " + result.memoryReport);
+		}
+	}
+
+	private static class Result {
+		long tokens;
+		double seconds;
+		double[] latencies;  // milliseconds per document
+		long heapBytes;  // after GC, while the duplicates and their language resources are alive
+		Map<String, Map<String, Long>> memoryReport;
+	}
+
+	private static Result run(LanguageAnalyser lemmatizer, SyntheticCorpusGenerator generator, int nrThreads) throws Exception {
+		List<LanguageAnalyser> duplicates = new ArrayList<>();
+		List<List<Document>> corpora = new ArrayList<>();
+		for (int i = 0; i < nrThreads; i++) {
+			duplicates.add((LanguageAnalyser) Factory.duplicate(lemmatizer));
+			corpora.add(generator.generate(DOCUMENTS, TOKENS_PER_DOCUMENT));
+		}
+
+		// one document per duplicate first, so that loading is not measured
+		for (int i = 0; i < nrThreads; i++) process(duplicates.get(i), corpora.get(i), 0, new ArrayList<>());
+
+		long[] tokens = new long[nrThreads];
+		List<List<Double>> latencies = new ArrayList<>();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread[] threads = new Thread[nrThreads];
+		long start = System.nanoTime();
+		long deadline = start + SECONDS * 1000000000L;
+		for (int i = 0; i < nrThreads; i++) {
+			int thread = i;
+			latencies.add(new ArrayList<>());
+			threads[i] = new Thread(() -> {
+				try {
+					tokens[thread] = process(duplicates.get(thread), corpora.get(thread), deadline, latencies.get(thread));
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) thread.join();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		Map<String, Map<String, Long>> memoryReport = LanguageResources.memoryReport();
+		long heapBytes = heapAfterGc();
+
+		for (LanguageAnalyser duplicate : duplicates) Factory.deleteResource(duplicate);
+		for (List<Document> corpus : corpora) for (Document document : corpus) Factory.deleteResource(document);
+		if (failure.get() != null) throw new AssertionError("lemmatization failed", failure.get());
+
+		Result result = new Result();
+		result.seconds = seconds;
+		result.memoryReport = memoryReport;
+		result.heapBytes = heapBytes;
+		for (long n : tokens) result.tokens += n;
+		List<Double> all = new ArrayList<>();
+		for (List<Double> l : latencies) all.addAll(l);
+		result.latencies = new double[all.size()];
+		for (int i = 0; i < all.size(); i++) result.latencies[i] = all.get(i);
+		Arrays.sort(result.latencies);
+		Assert.assertTrue("no documents processed with " + nrThreads + " threads", result.latencies.length > 0);
+		return result;
+	}
+
+	/**
+	 * Runs the lemmatizer over the documents again and again until the deadline, like a controller would.
+	 *
+	 * @return the number of tokens processed
+	 */
+	private static long process(LanguageAnalyser lemmatizer, List<Document> documents, long deadline, List<Double> latencies) throws ExecutionException {
+		ControllerAwarePR controllerAware = (ControllerAwarePR) lemmatizer;
+		controllerAware.controllerExecutionStarted(pipeline);
+		long tokens = 0;
+		int i = 0;
+		do {
+			Document document = documents.get(i++ % documents.size());
+			long start = System.nanoTime();
+			lemmatizer.setDocument(document);
+			lemmatizer.execute();
+			latencies.add((System.nanoTime() - start) / 1e6);
+			tokens += document.getAnnotations().get("Token").size();
+		} while (System.nanoTime() < deadline);
+		lemmatizer.setDocument(null);
+		controllerAware.controllerExecutionFinished(pipeline);
+		return tokens;
+	}
+
+	private static double percentile(double[] sorted, double p) {
+		if (sorted.length == 0) return 0;
+		return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+	}
+
+	private static long heapAfterGc() {
+		System.gc();
+		System.gc();
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+}
@@ -0,0 +1,77 @@
+package com.ontotext.gate.dictlemm.test;
+
+import com.ontotext.gate.dictlemm.LanguageResources;
+import com.ontotext.gate.dictlemm.PartOfSpeech;
+import com.ontotext.gate.dictlemm.SuffixLemmaGuesser;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+public class SuffixLemmaGuesserIT {
+	private static final String PLUGIN_DIR_PROPERTY_NAME = "pluginDir";
+
+	private static Map<String, String> dictionary(String... formsAndLemmata) {
+		Map<String, String> dictionary = new HashMap<>();
+		for (int i = 0; i < formsAndLemmata.length; i += 2) dictionary.put(formsAndLemmata[i], formsAndLemmata[i + 1]);
+		return dictionary;
+	}
+
+	private static File resourcesDir() {
+		return new File(System.getProperty(PLUGIN_DIR_PROPERTY_NAME), "resources");
+	}
+
+	@Test
+	public void testRuleOfLongestSuffix() {
+		SuffixLemmaGuesser guesser = SuffixLemmaGuesser.build(dictionary(
+				"cities", "city", "ponies", "pony", "ladies", "lady", "berries", "berry",
+				"cats", "cat", "hats", "hat", "rats", "rat", "dogs", "dog"));
+		Assert.assertEquals("flurby", guesser.guess("flurbies", 0.9));
+		Assert.assertEquals("splat", guesser.guess("splats", 0.9));
+		Assert.assertEquals("the case of the word is kept", "Flurby", guesser.guess("Flurbies", 0.9));
+		Assert.assertNull("only the final letter is known", guesser.guess("blorps", 0.9));
+	}
+
+	@Test
+	public void testMinimumSuffixLength() {
+		// the forms only share their last letter, which is not enough to guess from
+		SuffixLemmaGuesser guesser = SuffixLemmaGuesser.build(dictionary(
+				"aqub", "aqu", "cexb", "cex", "dovb", "dov", "fiwb", "fiw"));
+		Assert.assertNull(guesser.guess("zzzb", 0.5));
+	}
+
+	@Test
+	public void testMinimumConfidence() {
+		SuffixLemmaGuesser guesser = SuffixLemmaGuesser.build(dictionary(
+				"walking", "walk", "talking", "talk", "baking", "bake", "making", "make", "taking", "take", "joking", "joke"));
+		Assert.assertNull("the rules for -king disagree", guesser.guess("glorking", 0.9));
+		Assert.assertEquals("glorke", guesser.guess("glorking", 0.5));
+	}
+
+	@Test
+	public void testBundledLists() {
+		LanguageResources en = LanguageResources.acquire(resourcesDir(), "en");
+		LanguageResources de = LanguageResources.acquire(resourcesDir(), "de");
+		try {
+			en.buildGuessers();
+			de.buildGuessers();
+			for (PartOfSpeech pos : PartOfSpeech.values()) {
+				if (!pos.isOpenClass()) Assert.assertNull("guesser for closed class " + pos, en.getGuesser(pos));
+			}
+			Assert.assertNotNull(en.getGuesser(PartOfSpeech.NOUN));
+			Assert.assertEquals("glorp", en.getGuesser(PartOfSpeech.VERB).guess("glorped", 0.9));
+			Assert.assertEquals("Glorpung", de.getGuesser(PartOfSpeech.NOUN).guess("Glorpungen", 0.9));
+			Assert.assertNull("a final -d is no German verb suffix", de.getGuesser(PartOfSpeech.VERB).guess("Glorped", 0.9));
+		} finally {
+			en.release();
+			de.release();
+		}
+	}
+
+	@Test
+	public void testEmptyDictionary() {
+		Assert.assertNull(SuffixLemmaGuesser.buildUnlessEmpty(new HashMap<>()));
+	}
+}
@@ -0,0 +1,170 @@
+package com.ontotext.gate.dictlemm.test;
+
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.Utils;
+import gate.creole.ResourceInstantiationException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Generates tokenized GATE documents from the bundled word lists of a language.
+ * Words are drawn from a Zipfian distribution over each POS vocabulary, with a POS mix similar to
+ * running text, some punctuation and numbers, and a small share of made up words which are not
+ * in the lists and therefore go to the guessers and HFST.
+ */
+public class SyntheticCorpusGenerator {
+	private static final int MAX_VOCABULARY = 50000;
+	private static final double ZIPF_EXPONENT = 1.07;
+	private static final double OOV_RATE = 0.02;
+
+	private static final String[] POS_NAMES = {"NOUN", "VERB", "ADJ", "ADP", "DET", "ADV", "PRON", "PART"};
+	private static final String[][] POS_TAGS = {
+			{"NN", "NN", "NNS", "NNP"},
+			{"VB", "VBD", "VBG", "VBN", "VBP", "VBZ"},
+			{"JJ", "JJ", "JJR", "JJS"},
+			{"IN"},
+			{"DT"},
+			{"RB"},
+			{"PRP", "PRP$"},
+			{"RP"}};
+	private static final double[] POS_WEIGHTS = {0.28, 0.16, 0.09, 0.13, 0.11, 0.05, 0.07, 0.01};
+	private static final double PUNCT_WEIGHT = 0.08;
+	private static final double NUMBER_WEIGHT = 0.02;
+
+	private final Random random;
+	private final List<List<String>> vocabularies = new ArrayList<>();
+	private final List<double[]> cumulative = new ArrayList<>();
+	private final double[] mixCumulative;
+
+	/**
+	 * @param dictDir the dictionary directory of a language, e.g. resources/dictionaries/en
+	 * @param seed    the random seed, the same seed gives the same corpus
+	 */
+	public SyntheticCorpusGenerator(File dictDir, long seed) throws IOException {
+		random = new Random(seed);
+		for (String pos : POS_NAMES) {
+			List<String> vocabulary = readForms(new File(dictDir, pos + "-Dict.txt.gz"));
+			Collections.shuffle(vocabulary, random);
+			if (vocabulary.size() > MAX_VOCABULARY) vocabulary = new ArrayList<>(vocabulary.subList(0, MAX_VOCABULARY));
+			vocabularies.add(vocabulary);
+			cumulative.add(zipf(vocabulary.size()));
+		}
+
+		// parts of speech without words in the lists are never chosen
+		double[] weights = new double[POS_WEIGHTS.length + 2];
+		for (int i = 0; i < POS_WEIGHTS.length; i++) weights[i] = vocabularies.get(i).isEmpty() ? 0 : POS_WEIGHTS[i];
+		weights[POS_WEIGHTS.length] = PUNCT_WEIGHT;
+		weights[POS_WEIGHTS.length + 1] = NUMBER_WEIGHT;
+		mixCumulative = new double[weights.length];
+		double sum = 0;
+		for (int i = 0; i < weights.length; i++) {
+			sum += weights[i];
+			mixCumulative[i] = sum;
+		}
+		for (int i = 0; i < weights.length; i++) mixCumulative[i] /= sum;
+	}
+
+	/**
+	 * Creates a corpus of documents as a list, so that every thread can have its own.
+	 */
+	public List<Document> generate(int nrDocuments, int tokensPerDocument) throws ResourceInstantiationException {
+		List<Document> documents = new ArrayList<>(nrDocuments);
+		for (int i = 0; i < nrDocuments; i++) documents.add(generateDocument(tokensPerDocument));
+		return documents;
+	}
+
+	public Document generateDocument(int nrTokens) throws ResourceInstantiationException {
+		List<String> strings = new ArrayList<>(nrTokens);
+		List<String> categories = new ArrayList<>(nrTokens);
+		List<String> kinds = new ArrayList<>(nrTokens);
+		for (int i = 0; i < nrTokens; i++) {
+			int kind = sample(mixCumulative);
+			if (kind == POS_NAMES.length) {
+				strings.add(".");
+				categories.add(".");
+				kinds.add("punct");
+			} else if (kind == POS_NAMES.length + 1) {
+				strings.add(Integer.toString(random.nextInt(10000)));
+				categories.add("CD");
+				kinds.add("number");
+			} else {
+				String word = vocabularies.get(kind).get(sample(cumulative.get(kind)));
+				if (random.nextDouble() < OOV_RATE) word = randomPrefix() + word;
+				String[] tags = POS_TAGS[kind];
+				strings.add(word);
+				categories.add(tags[random.nextInt(tags.length)]);
+				kinds.add("word");
+			}
+		}
+
+		StringBuilder text = new StringBuilder();
+		long[] starts = new long[nrTokens];
+		for (int i = 0; i < nrTokens; i++) {
+			if (i > 0) text.append(' ');
+			starts[i] = text.length();
+			text.append(strings.get(i));
+		}
+
+		Document document = Factory.newDocument(text.toString());
+		AnnotationSet annotations = document.getAnnotations();
+		for (int i = 0; i < nrTokens; i++) {
+			String string = strings.get(i);
+			Utils.addAnn(annotations, starts[i], starts[i] + string.length(), "Token",
+					Utils.featureMap("string", string, "category", categories.get(i), "kind", kinds.get(i), "length", Integer.toString(string.length())));
+		}
+		return document;
+	}
+
+	private String randomPrefix() {
+		char[] prefix = new char[3];
+		for (int i = 0; i < prefix.length; i++) prefix[i] = (char) ('a' + random.nextInt(26));
+		return new String(prefix);
+	}
+
+	private int sample(double[] cumulative) {
+		int index = Arrays.binarySearch(cumulative, random.nextDouble());
+		if (index < 0) index = -index - 1;
+		return Math.min(index, cumulative.length - 1);
+	}
+
+	private static double[] zipf(int n) {
+		double[] cumulative = new double[Math.max(n, 1)];
+		double sum = 0;
+		for (int rank = 1; rank <= n; rank++) {
+			sum += 1.0 / Math.pow(rank, ZIPF_EXPONENT);
+			cumulative[rank - 1] = sum;
+		}
+		for (int i = 0; i < n; i++) cumulative[i] /= sum;
+		return cumulative;
+	}
+
+	private static List<String> readForms(File dictFile) throws IOException {
+		List<String> forms = new ArrayList<>();
+		if (!dictFile.exists()) return forms;
+
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(dictFile)), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] values = line.split("===");
+				if (values.length != 2) continue;
+				for (String form : values[1].split(";")) {
+					if (!form.trim().isEmpty()) forms.add(form.trim());
+				}
+			}
+		}
+		return forms;
+	}
+}
@@ -0,0 +1,124 @@
+package com.ontotext.gate.dictlemm.test;
+
+import com.ontotext.gate.dictlemm.HfstCircuitBreaker;
+import com.ontotext.gate.dictlemm.LanguageResources;
+import com.ontotext.gate.dictlemm.LemmaOutcome;
+import com.ontotext.gate.dictlemm.TokenLemmatizer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+public class TokenLemmatizerIT {
+	private static final String PLUGIN_DIR_PROPERTY_NAME = "pluginDir";
+	private static final String MODEL_FILE = "en.hfst.ol.gz";
+	private static final int MAX_TOKEN_LENGTH = 20;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private LanguageResources resources;
+	private TokenLemmatizer lemmatizer;
+
+	/**
+	 * Uses a copy of the bundled transducer in a directory of its own, so that the lemmatizer gets a circuit
+	 * breaker which no other test shares, and no lists, so that every word is passed to HFST.
+	 */
+	@Before
+	public void setup() throws IOException {
+		File resourcesDir = folder.newFolder("resources");
+		File models = new File(new File(System.getProperty(PLUGIN_DIR_PROPERTY_NAME), "resources"), "lemmaModels");
+		File copy = new File(resourcesDir, "lemmaModels");
+		Assert.assertTrue(copy.mkdir());
+		Files.copy(new File(models, MODEL_FILE).toPath(), new File(copy, MODEL_FILE).toPath());
+		resources = LanguageResources.acquire(resourcesDir, "en");
+		Assert.assertNotNull("the transducer is loaded", resources.getHfstLemmatizer());
+
+		lemmatizer = new TokenLemmatizer(resources);
+		lemmatizer.setGuesserMinConfidence(2.0);
+		lemmatizer.setHfstMaxTokenLength(MAX_TOKEN_LENGTH);
+		lemmatizer.setHfstTokenTimeBudget(10000);
+		lemmatizer.setHfstDocumentTimeBudget(10000);
+		lemmatizer.setHfstMaxFailureRate(0.5);
+		lemmatizer.startDocument();
+	}
+
+	@After
+	public void release() {
+		if (resources != null) resources.release();
+	}
+
+	private void assertOutcome(LemmaOutcome expected, String token) {
+		Assert.assertEquals("the token itself is the lemma", token, lemmatizer.lemmatize(token, "word", "NN"));
+		Assert.assertEquals(token, expected, lemmatizer.getOutcome());
+	}
+
+	@Test
+	public void testIsLexical() {
+		Assert.assertTrue(TokenLemmatizer.isLexical("word", MAX_TOKEN_LENGTH));
+		Assert.assertTrue(TokenLemmatizer.isLexical("\u00fcber", MAX_TOKEN_LENGTH));
+		Assert.assertTrue(TokenLemmatizer.isLexical("mother-in-law", MAX_TOKEN_LENGTH));
+		Assert.assertTrue(TokenLemmatizer.isLexical("o'clock", MAX_TOKEN_LENGTH));
+		Assert.assertTrue(TokenLemmatizer.isLexical("don\u2019t", MAX_TOKEN_LENGTH));
+		Assert.assertTrue(TokenLemmatizer.isLexical("e.g.", MAX_TOKEN_LENGTH));
+		Assert.assertTrue(TokenLemmatizer.isLexical("abcde", 5));
+
+		Assert.assertFalse(TokenLemmatizer.isLexical("", MAX_TOKEN_LENGTH));
+		Assert.assertFalse("too long", TokenLemmatizer.isLexical("abcdef", 5));
+		Assert.assertFalse("no letter", TokenLemmatizer.isLexical("-.'", MAX_TOKEN_LENGTH));
+		Assert.assertFalse(TokenLemmatizer.isLexical("abc123", MAX_TOKEN_LENGTH));
+		Assert.assertFalse(TokenLemmatizer.isLexical("http://x.org", MAX_TOKEN_LENGTH));
+		Assert.assertFalse(TokenLemmatizer.isLexical("two words", MAX_TOKEN_LENGTH));
+	}
+
+	@Test
+	public void testNonLexicalTokensAreSkipped() {
+		assertOutcome(LemmaOutcome.HFST_EMPTY, "qwxzv");
+		assertOutcome(LemmaOutcome.HFST_SKIPPED, "qwxzv123");
+		assertOutcome(LemmaOutcome.HFST_SKIPPED, "www.qwxzv.org/a");
+		assertOutcome(LemmaOutcome.HFST_SKIPPED, "qwxzvqwxzvqwxzvqwxzvq");
+		Assert.assertEquals("NOUN-NOTFOUND-HFST_SKIPPED-NOHFST", lemmatizer.getStatus());
+		Assert.assertEquals(1, lemmatizer.getDocumentSummary().get("HFST_EMPTY").intValue());
+		Assert.assertEquals(3, lemmatizer.getDocumentSummary().get("HFST_SKIPPED").intValue());
+	}
+
+	@Test
+	public void testSlowCalls() {
+		lemmatizer.setHfstTokenTimeBudget(0);
+		assertOutcome(LemmaOutcome.HFST_EMPTY_SLOW, "qwxzv");
+		Assert.assertEquals("NOUN-NOTFOUND-HFST_EMPTY-HFST_SLOW", lemmatizer.getStatus());
+	}
+
+	@Test
+	public void testDocumentBudget() {
+		lemmatizer.setHfstDocumentTimeBudget(0);
+		assertOutcome(LemmaOutcome.HFST_BUDGET, "qwxzv");
+		Assert.assertEquals(0, lemmatizer.getDocumentHfstNanos());
+
+		lemmatizer.setHfstDocumentTimeBudget(10000);
+		assertOutcome(LemmaOutcome.HFST_EMPTY, "qwxzv");
+		Assert.assertTrue("the time of the call counts against the budget", lemmatizer.getDocumentHfstNanos() > 0);
+
+		lemmatizer.startDocument();
+		Assert.assertEquals("each document has its own budget", 0, lemmatizer.getDocumentHfstNanos());
+	}
+
+	@Test
+	public void testSlowCallsOpenBreaker() {
+		lemmatizer.setHfstTokenTimeBudget(0);
+		for (int i = 0; i < HfstCircuitBreaker.WINDOW_SIZE - 1; i++) assertOutcome(LemmaOutcome.HFST_EMPTY_SLOW, "qwxzv");
+		Assert.assertTrue(resources.getCircuitBreaker().allowRequest());
+		assertOutcome(LemmaOutcome.HFST_EMPTY_SLOW, "qwxzv");
+
+		lemmatizer.setHfstTokenTimeBudget(10000);
+		assertOutcome(LemmaOutcome.HFST_OFF, "qwxzv");
+		Assert.assertEquals("NOUN-NOTFOUND-HFST_OFF-NOHFST", lemmatizer.getStatus());
+		assertOutcome(LemmaOutcome.HFST_SKIPPED, "qwxzv123");
+	}
+}
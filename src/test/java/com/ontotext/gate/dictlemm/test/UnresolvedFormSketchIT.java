@@ -0,0 +1,147 @@
+package com.ontotext.gate.dictlemm.test;
+
+import com.ontotext.gate.dictlemm.LanguageResources;
+import com.ontotext.gate.dictlemm.UnresolvedFormSketch;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class UnresolvedFormSketchIT {
+	private static final int HEAVY_KEYS = 10;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final UnresolvedFormSketch sketch = UnresolvedFormSketch.getInstance();
+
+	@Before
+	@After
+	public void reset() {
+		sketch.reset();
+	}
+
+	/**
+	 * Ten heavy forms with 950, 900 ... 500 occurrences among 20000 forms which occur once, in
+	 * random order, so that most forms are evicted from the 5000 counters.
+	 */
+	private Map<String, Long> feedSkewedStream() {
+		List<String> stream = new ArrayList<>();
+		Map<String, Long> counts = new HashMap<>();
+		for (int i = 0; i < HEAVY_KEYS; i++) {
+			for (int n = 0; n < 950 - 50 * i; n++) stream.add("heavy" + i);
+			counts.put("heavy" + i, 950L - 50 * i);
+		}
+		for (int i = 0; i < 20000; i++) {
+			stream.add("rare" + i);
+			counts.put("rare" + i, 1L);
+		}
+		Collections.shuffle(stream, new Random(42));
+
+		UnresolvedFormSketch.Buffer buffer = new UnresolvedFormSketch.Buffer();
+		for (String form : stream) buffer.add("xx", "NOUN", form);
+		buffer.flush();
+		return counts;
+	}
+
+	@Test
+	public void testSpaceSaving() {
+		Map<String, Long> counts = feedSkewedStream();
+		long total = 0;
+		for (long count : counts.values()) total += count;
+		Assert.assertEquals(total, sketch.getTotal());
+
+		List<UnresolvedFormSketch.Entry> all = sketch.getTop(UnresolvedFormSketch.CAPACITY + 1);
+		Assert.assertEquals("all counters are used", UnresolvedFormSketch.CAPACITY, all.size());
+		for (UnresolvedFormSketch.Entry entry : all) {
+			long count = counts.get(entry.form);
+			Assert.assertTrue(entry + " underestimates " + count, entry.count >= count);
+			Assert.assertTrue(entry + " overestimates " + count + " by more than its error", entry.count - entry.error <= count);
+			Assert.assertTrue(entry + " has an error above total / capacity", entry.error <= total / UnresolvedFormSketch.CAPACITY);
+		}
+
+		// the errors are far smaller than the gaps between the heavy forms, so their order is exact
+		List<UnresolvedFormSketch.Entry> top = sketch.getTop(HEAVY_KEYS);
+		for (int i = 0; i < HEAVY_KEYS; i++) {
+			Assert.assertEquals("heavy" + i, top.get(i).form);
+			Assert.assertEquals("xx", top.get(i).language);
+			Assert.assertEquals("NOUN", top.get(i).pos);
+		}
+	}
+
+	@Test
+	public void testBufferFlushesWhenFull() {
+		UnresolvedFormSketch.Buffer buffer = new UnresolvedFormSketch.Buffer();
+		for (int i = 0; i < UnresolvedFormSketch.Buffer.MAX_KEYS - 1; i++) buffer.add("xx", "NOUN", "form" + i);
+		buffer.add("xx", "NOUN", "form0");
+		Assert.assertEquals("a buffer with fewer keys is kept", 0, sketch.getTotal());
+		buffer.add("xx", "NOUN", "last");
+		Assert.assertEquals(UnresolvedFormSketch.Buffer.MAX_KEYS + 1, sketch.getTotal());
+		Assert.assertEquals("form0", sketch.getTop(1).get(0).form);
+		Assert.assertEquals(2, sketch.getTop(1).get(0).count);
+
+		buffer.flush();
+		Assert.assertEquals("the flushed buffer is empty", UnresolvedFormSketch.Buffer.MAX_KEYS + 1, sketch.getTotal());
+	}
+
+	@Test
+	public void testDump() throws Exception {
+		feedSkewedStream();
+		File file = new File(folder.getRoot(), "out/unresolved.tsv");
+		sketch.dump(file, HEAVY_KEYS);
+
+		List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+		Assert.assertEquals("count\terror\tlanguage\tpos\tform", lines.get(0));
+		List<UnresolvedFormSketch.Entry> top = sketch.getTop(HEAVY_KEYS);
+		Assert.assertEquals(HEAVY_KEYS + 1, lines.size());
+		for (int i = 0; i < HEAVY_KEYS; i++) {
+			String[] columns = lines.get(i + 1).split("\t");
+			Assert.assertEquals(top.get(i).count, Long.parseLong(columns[0]));
+			Assert.assertEquals(top.get(i).error, Long.parseLong(columns[1]));
+			Assert.assertEquals("xx", columns[2]);
+			Assert.assertEquals("NOUN", columns[3]);
+			Assert.assertEquals("heavy" + i, columns[4]);
+		}
+		Assert.assertEquals("no temporary file is left", 1, file.getParentFile().list().length);
+	}
+
+	@Test
+	public void testRuns() {
+		File file = new File(folder.getRoot(), "unresolved.tsv");
+		File other = new File(folder.getRoot(), "other.tsv");
+		sketch.startRun(file);
+		sketch.startRun(file);
+		sketch.startRun(other);
+		Assert.assertFalse("another run dumps to the file later", sketch.finishRun(file));
+		Assert.assertTrue("the last run dumps", sketch.finishRun(file));
+		Assert.assertTrue(sketch.finishRun(other));
+		Assert.assertTrue("a run which was not registered dumps", sketch.finishRun(file));
+	}
+
+	@Test
+	public void testMBeanFollowsLanguageResources() throws Exception {
+		ObjectName name = new ObjectName(UnresolvedFormSketch.MBEAN_NAME);
+		LanguageResources resources = LanguageResources.acquire(folder.newFolder("resources"), "xx");
+		try {
+			Assert.assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+		} finally {
+			resources.release();
+		}
+		// other tests of this JVM may still hold resources
+		if (LanguageResources.memoryReport().isEmpty()) Assert.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+	}
+}